@@ -0,0 +1,104 @@
+package com.github.vase4kin;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Connection of this fork to the {@link ServiceMessageAggregator} shared by all listeners.
+ * <p>
+ * Lines are sent in a single write of a blocking channel, which writes all bytes before another thread can write, so
+ * lines of parallel listeners never interleave. Once a write fails the connection stays closed
+ * and listeners print their messages themselves.
+ */
+class AggregatorConnection {
+
+    static final String ADDRESS_PROPERTY = "teamcity.steplistener.aggregator.address";
+
+    /**
+     * Buffers are taken for the messages of one callback, a buffer fits the messages of a passing test
+     */
+    private static final ByteBufferPool BUFFERS = new ByteBufferPool(
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()), 16 * 1024);
+
+    private final WritableByteChannel channel;
+
+    private volatile boolean closed;
+
+    /**
+     * @param channel blocking channel connected to the aggregator
+     */
+    AggregatorConnection(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @return connection shared by all listeners, null if no aggregator is configured or it can't be reached
+     */
+    static AggregatorConnection getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private static AggregatorConnection create() {
+        String address = System.getProperty(ADDRESS_PROPERTY);
+        if (address == null) {
+            return null;
+        }
+        try {
+            return new AggregatorConnection(ServiceMessageAggregator.connect(address));
+        } catch (IOException e) {
+            LoggerFactory.getLogger(AggregatorConnection.class)
+                    .warn("Service messages are printed directly, can't connect to the aggregator at " + address, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return empty buffer for lines to send, given back with {@link #release(ByteBuffer)}
+     */
+    ByteBuffer acquire() {
+        return BUFFERS.acquire();
+    }
+
+    void release(ByteBuffer buffer) {
+        BUFFERS.release(buffer);
+    }
+
+    /**
+     * Sends the lines written to the buffer in a single write
+     *
+     * @return false if the connection is closed, the lines are not sent
+     */
+    boolean send(ByteBuffer lines) {
+        if (closed) {
+            return false;
+        }
+        lines.flip();
+        try {
+            while (lines.hasRemaining()) {
+                channel.write(lines);
+            }
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        } finally {
+            lines.clear();
+        }
+    }
+
+    void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to release
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final AggregatorConnection INSTANCE = create();
+    }
+}
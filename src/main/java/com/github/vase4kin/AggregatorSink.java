@@ -0,0 +1,110 @@
+package com.github.vase4kin;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends service messages to the {@link ServiceMessageAggregator} in place of {@link ServiceMessageSink}.
+ * <p>
+ * Messages of a test are published together when it finishes, so they are collected in a pooled buffer and sent
+ * with one write when the test is finished. When the connection is closed the collected messages and the rest of
+ * the build output go to the fallback sink, so they are printed by the fork itself. Messages sent while the
+ * aggregator was going away may be lost.
+ */
+class AggregatorSink implements EventSink {
+
+    private final Logger logger;
+    private final AggregatorConnection connection;
+    private final EventSink fallback;
+
+    /**
+     * Messages in the buffer, replayed to the fallback sink if the buffer can't be sent
+     */
+    private final List<ListenerEvent> pendingEvents = new ArrayList<>();
+    private final List<EncodedMessage> pendingMessages = new ArrayList<>();
+    private ByteBuffer buffer;
+
+    private boolean fallenBack;
+
+    AggregatorSink(Logger logger, AggregatorConnection connection, EventSink fallback) {
+        this.logger = logger;
+        this.connection = connection;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public void write(ListenerEvent event, EncodedMessage message) throws IOException {
+        if (fallenBack) {
+            fallback.write(event, message);
+            return;
+        }
+        ByteBuffer bytes = message.getBytes();
+        if (buffer == null) {
+            buffer = connection.acquire();
+        }
+        if (bytes.remaining() + 1 > buffer.remaining() && !pendingMessages.isEmpty() && !flush()) {
+            fallBack(event, message);
+            return;
+        }
+        if (bytes.remaining() + 1 > buffer.remaining()) {
+            // larger than a pooled buffer, dropped by the pool when it is released
+            connection.release(buffer);
+            buffer = ByteBuffer.allocate(bytes.remaining() + 1);
+        }
+        buffer.put(bytes).put((byte) '\n');
+        pendingEvents.add(event);
+        pendingMessages.add(message);
+        if (!isFollowedByTestFinished(event.getType())) {
+            if (!flush()) {
+                fallBack(null, null);
+                return;
+            }
+            connection.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Events published between started and finished of a test in the same callback
+     */
+    private static boolean isFollowedByTestFinished(ListenerEvent.Type type) {
+        return type == ListenerEvent.Type.TEST_STARTED || type == ListenerEvent.Type.TEST_FAILED
+                || type == ListenerEvent.Type.TEST_IGNORED || type == ListenerEvent.Type.TEST_METADATA;
+    }
+
+    /**
+     * @return false if the connection is closed, pending messages are kept
+     */
+    private boolean flush() {
+        if (!connection.send(buffer)) {
+            return false;
+        }
+        pendingEvents.clear();
+        pendingMessages.clear();
+        return true;
+    }
+
+    /**
+     * Replays pending messages to the fallback sink, followed by the message which didn't fit
+     *
+     * @param event null if all messages are pending
+     */
+    private void fallBack(ListenerEvent event, EncodedMessage message) throws IOException {
+        fallenBack = true;
+        logger.warn("Connection to the aggregator is closed, service messages are printed directly");
+        connection.release(buffer);
+        buffer = null;
+        for (int i = 0; i < pendingMessages.size(); i++) {
+            fallback.write(pendingEvents.get(i), pendingMessages.get(i));
+        }
+        pendingEvents.clear();
+        pendingMessages.clear();
+        if (event != null) {
+            fallback.write(event, message);
+        }
+    }
+}
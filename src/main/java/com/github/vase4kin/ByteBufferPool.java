@@ -0,0 +1,58 @@
+package com.github.vase4kin;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Small bounded pool of direct buffers shared by all listeners, the byte counterpart of {@link StringBuilderPool}.
+ * <p>
+ * Buffers are kept in a fixed array of slots taken and returned with CAS. When all slots are taken a new buffer is
+ * allocated and dropped after use, buffers of another capacity are dropped as well.
+ */
+final class ByteBufferPool {
+
+    private final AtomicReferenceArray<ByteBuffer> slots;
+    private final int capacity;
+
+    ByteBufferPool(int size, int capacity) {
+        this.slots = new AtomicReferenceArray<>(size);
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return empty buffer which should be given back with {@link #release(ByteBuffer)}
+     */
+    ByteBuffer acquire() {
+        int size = slots.length();
+        int start = getStartSlot(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            if (slots.get(slot) != null) {
+                ByteBuffer buffer = slots.getAndSet(slot, null);
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() != capacity || !buffer.isDirect()) {
+            return;
+        }
+        buffer.clear();
+        int size = slots.length();
+        int start = getStartSlot(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffer)) {
+                return;
+            }
+        }
+    }
+
+    private static int getStartSlot(int size) {
+        return (int) (Thread.currentThread().getId() % size);
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.vase4kin;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Service message encoded once per event and shared by all sinks
+ */
+public final class EncodedMessage {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String text;
+
+    private ByteBuffer bytes;
+
+    EncodedMessage(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @return service message line without line separator
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return read-only UTF-8 bytes of the service message, encoded on the first call
+     */
+    public ByteBuffer getBytes() {
+        if (bytes == null) {
+            bytes = ByteBuffer.wrap(text.getBytes(UTF_8)).asReadOnlyBuffer();
+        }
+        return bytes.duplicate();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.vase4kin;
+
+/**
+ * Second stage of the event pipeline, registered in META-INF/services/com.github.vase4kin.EventEnricher
+ */
+public interface EventEnricher {
+
+    /**
+     * @return the same event or a copy created with {@link ListenerEvent#withAttribute(String, String)}
+     */
+    ListenerEvent enrich(ListenerEvent event);
+}
@@ -0,0 +1,12 @@
+package com.github.vase4kin;
+
+/**
+ * First stage of the event pipeline, registered in META-INF/services/com.github.vase4kin.EventFilter
+ */
+public interface EventFilter {
+
+    /**
+     * @return false to drop the event before it reaches any sink
+     */
+    boolean accept(ListenerEvent event);
+}
@@ -0,0 +1,208 @@
+package com.github.vase4kin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Append-only binary event journal written to a memory-mapped file.
+ * <p>
+ * File starts with {@link #MAGIC}, followed by length-prefixed records:
+ * <pre>
+ * int length | byte type | long timestamp | [int exampleIndex] | [byte status | long duration] | int nameLength | name
+ * </pre>
+ * exampleIndex is present for test events, status and duration for finished tests only, name is UTF-8 encoded.
+ * The length is written after the record body, a crashed writer leaves a zero length which marks the end of the journal
+ * the same way the zero filled tail of the last mapped chunk does.
+ * <p>
+ * The file is closed when the outermost suite finishes and opened again at the end of the records when the next
+ * suite starts, so idle listeners don't hold a file handle. Not thread safe, every listener writes its own journal.
+ */
+class EventJournal implements Closeable, EventSink {
+
+    static final int MAGIC = 0x53544a31;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 8;
+    private static final int TEST_FINISHED_SIZE = 4 + 1 + 8;
+
+    private final File file;
+    private FileChannel channel;
+
+    /**
+     * Null while the journal is closed
+     */
+    private MappedByteBuffer buffer;
+    private long bufferOffset;
+
+    private int suiteDepth;
+
+    EventJournal(File file) throws IOException {
+        this.file = file;
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        map(0, CHUNK_SIZE);
+        buffer.putInt(MAGIC);
+    }
+
+    /**
+     * Records suite and test events with their times, the journal is closed when the outermost suite finishes
+     */
+    @Override
+    public void write(ListenerEvent event, EncodedMessage message) throws IOException {
+        switch (event.getType()) {
+            case SUITE_STARTED:
+                suiteDepth++;
+                suiteStarted(event.getName(), event.getTimestamp());
+                break;
+            case SUITE_FINISHED:
+                suiteFinished(event.getName(), event.getTimestamp());
+                if (--suiteDepth == 0) {
+                    close();
+                }
+                break;
+            case TEST_STARTED:
+                testStarted(event.getName(), event.getExampleIndex(), event.getTimestamp());
+                break;
+            case TEST_FINISHED:
+                testFinished(event.getName(), event.getExampleIndex(), getStatus(event.getStatus()),
+                        event.getDuration(), event.getTimestamp());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @param timestamp event time in milliseconds since epoch
+     */
+    void suiteStarted(String name, long timestamp) throws IOException {
+        int start = startRecord(JournalEvent.Type.SUITE_STARTED, name, 0, timestamp);
+        putString(name);
+        finishRecord(start);
+    }
+
+    void suiteFinished(String name, long timestamp) throws IOException {
+        int start = startRecord(JournalEvent.Type.SUITE_FINISHED, name, 0, timestamp);
+        putString(name);
+        finishRecord(start);
+    }
+
+    void testStarted(String name, int exampleIndex, long timestamp) throws IOException {
+        int start = startRecord(JournalEvent.Type.TEST_STARTED, name, 4, timestamp);
+        buffer.putInt(exampleIndex);
+        putString(name);
+        finishRecord(start);
+    }
+
+    void testFinished(String name, int exampleIndex, JournalEvent.Status status, long duration, long timestamp)
+            throws IOException {
+        int start = startRecord(JournalEvent.Type.TEST_FINISHED, name, TEST_FINISHED_SIZE, timestamp);
+        buffer.putInt(exampleIndex);
+        buffer.put(status.getCode());
+        buffer.putLong(duration);
+        putString(name);
+        finishRecord(start);
+    }
+
+    /**
+     * Flushes written records to the storage device and closes the file, the next record opens it again. The file is
+     * not truncated, the zero filled tail is skipped by the reader
+     */
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        buffer.force();
+        bufferOffset += buffer.position();
+        buffer = null;
+        channel.close();
+    }
+
+    boolean isOpen() {
+        return buffer != null;
+    }
+
+    @Override
+    public String toString() {
+        return "Event journal " + file;
+    }
+
+    private static JournalEvent.Status getStatus(ListenerEvent.Status status) {
+        switch (status) {
+            case FAILED:
+            case ERROR:
+                return JournalEvent.Status.FAILED;
+            case IGNORED:
+                return JournalEvent.Status.IGNORED;
+            default:
+                return JournalEvent.Status.PASSED;
+        }
+    }
+
+    private int startRecord(JournalEvent.Type type, String name, int fieldsSize, long timestamp) throws IOException {
+        int size = RECORD_HEADER_SIZE + fieldsSize + 4 + name.length() * 3;
+        if (buffer == null) {
+            open(size);
+        }
+        ensureCapacity(size);
+        int start = buffer.position();
+        buffer.position(start + 4);
+        buffer.put(type.getCode());
+        buffer.putLong(timestamp);
+        return start;
+    }
+
+    /**
+     * Maps a chunk from the end of the records written before the journal was closed
+     */
+    private void open(int size) throws IOException {
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        map(bufferOffset, Math.max(CHUNK_SIZE, size));
+    }
+
+    private void finishRecord(int start) {
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    /**
+     * ASCII names are copied char by char, anything else falls back to String#getBytes
+     */
+    private void putString(String value) {
+        int lengthPosition = buffer.position();
+        buffer.position(lengthPosition + 4);
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                byte[] bytes = value.getBytes(UTF_8);
+                buffer.position(lengthPosition + 4);
+                buffer.put(bytes);
+                buffer.putInt(lengthPosition, bytes.length);
+                return;
+            }
+            buffer.put((byte) c);
+        }
+        buffer.putInt(lengthPosition, length);
+    }
+
+    /**
+     * The next chunk is mapped from the current write position, so records never cross chunks and there are no gaps
+     */
+    private void ensureCapacity(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            map(bufferOffset + buffer.position(), Math.max(CHUNK_SIZE, size));
+        }
+    }
+
+    private void map(long offset, int size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, offset, size);
+        bufferOffset = offset;
+    }
+}
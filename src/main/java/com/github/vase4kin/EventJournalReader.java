@@ -0,0 +1,119 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads journals written with the teamcity.steplistener.journal.directory property.
+ * <p>
+ * Can be used as a converter to NDJSON, one JSON object per line:
+ * <pre>
+ * java -cp serenity-teamcity-steplistener.jar com.github.vase4kin.EventJournalReader journals/ &gt; events.ndjson
+ * </pre>
+ * Arguments are journal files or directories with *.journal files.
+ */
+public class EventJournalReader implements Iterable<JournalEvent> {
+
+    static final String JOURNAL_SUFFIX = ".journal";
+
+    private final ByteBuffer buffer;
+
+    public EventJournalReader(File file) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Journal is too large to be mapped: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < 4 || buffer.getInt(0) != EventJournal.MAGIC) {
+            throw new IOException("Not an event journal: " + file);
+        }
+    }
+
+    @Override
+    public Iterator<JournalEvent> iterator() {
+        final ByteBuffer records = buffer.duplicate();
+        records.position(4);
+        return new Iterator<JournalEvent>() {
+
+            private JournalEvent next = readNext(records);
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public JournalEvent next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                JournalEvent event = next;
+                next = readNext(records);
+                return event;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Writes all events as NDJSON
+     */
+    public void writeNdjson(Writer writer) throws IOException {
+        for (JournalEvent event : this) {
+            writer.write(event.toJson());
+            writer.write('\n');
+        }
+    }
+
+    private static JournalEvent readNext(ByteBuffer records) {
+        if (records.remaining() < 4) {
+            return null;
+        }
+        int length = records.getInt();
+        if (length <= 0 || length > records.remaining()) {
+            return null;
+        }
+        JournalEvent.Type type = JournalEvent.Type.fromCode(records.get());
+        long timestamp = records.getLong();
+        int exampleIndex = JournalEvent.NO_EXAMPLE;
+        JournalEvent.Status status = null;
+        long duration = 0;
+        if (type == JournalEvent.Type.TEST_STARTED || type == JournalEvent.Type.TEST_FINISHED) {
+            exampleIndex = records.getInt();
+        }
+        if (type == JournalEvent.Type.TEST_FINISHED) {
+            status = JournalEvent.Status.fromCode(records.get());
+            duration = records.getLong();
+        }
+        byte[] name = new byte[records.getInt()];
+        records.get(name);
+        return new JournalEvent(type, timestamp, new String(name, EventJournal.UTF_8), exampleIndex, status, duration);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(System.out, EventJournal.UTF_8));
+        for (String arg : args) {
+            File file = new File(arg);
+            File[] journals = file.isDirectory()
+                    ? file.listFiles(new FilenameFilter() {
+                        @Override
+                        public boolean accept(File dir, String name) {
+                            return name.endsWith(JOURNAL_SUFFIX);
+                        }
+                    })
+                    : new File[]{file};
+            for (File journal : journals) {
+                new EventJournalReader(journal).writeNdjson(writer);
+            }
+        }
+        writer.flush();
+    }
+}
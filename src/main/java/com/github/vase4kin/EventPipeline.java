@@ -0,0 +1,140 @@
+package com.github.vase4kin;
+
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Filters, enriches, encodes and fans out listener events.
+ * <p>
+ * Every event is encoded once, the same {@link EncodedMessage} is passed to all sinks. A stage which throws
+ * is removed with a warning, so a broken extension or a full disk never stops the build output.
+ * Not thread safe, every listener has its own pipeline.
+ */
+class EventPipeline {
+
+    static final String JUNIT_XML_DIRECTORY_PROPERTY = "teamcity.steplistener.junit.xml.directory";
+    static final String JOURNAL_DIRECTORY_PROPERTY = "teamcity.steplistener.journal.directory";
+
+    private static final String COALESCING_LATENCY_PROPERTY = "teamcity.steplistener.coalescing.latency.micros";
+
+    private final Logger logger;
+
+    private final List<EventFilter> filters;
+    private final List<EventEnricher> enrichers;
+    private final List<EventSink> sinks;
+    private final TimestampFormatter timestampFormatter;
+
+    EventPipeline(Logger logger, List<EventFilter> filters, List<EventEnricher> enrichers, List<EventSink> sinks) {
+        this(logger, filters, enrichers, sinks, null);
+    }
+
+    /**
+     * @param timestampFormatter null to leave timestamps of messages to TeamCity
+     */
+    EventPipeline(Logger logger, List<EventFilter> filters, List<EventEnricher> enrichers, List<EventSink> sinks,
+                  TimestampFormatter timestampFormatter) {
+        this.logger = logger;
+        this.filters = new ArrayList<>(filters);
+        this.enrichers = new ArrayList<>(enrichers);
+        this.sinks = new ArrayList<>(sinks);
+        this.timestampFormatter = timestampFormatter;
+    }
+
+    /**
+     * Creates the pipeline with the built-in sinks enabled by system properties followed by the registered stages
+     */
+    static EventPipeline create(Logger logger, String flowId) {
+        List<EventSink> sinks = new ArrayList<>();
+        EventSink serviceMessageSink = new ServiceMessageSink(logger, flowId, createPassedTestCoalescer(),
+                SuiteOutputBuffer.create());
+        AggregatorConnection aggregatorConnection = AggregatorConnection.getInstance();
+        sinks.add(aggregatorConnection != null
+                ? new AggregatorSink(logger, aggregatorConnection, serviceMessageSink)
+                : serviceMessageSink);
+        String junitXmlDirectory = System.getProperty(JUNIT_XML_DIRECTORY_PROPERTY);
+        if (junitXmlDirectory != null) {
+            sinks.add(new JUnitXmlReportWriter(new File(junitXmlDirectory)));
+        }
+        String journalDirectory = System.getProperty(JOURNAL_DIRECTORY_PROPERTY);
+        if (journalDirectory != null) {
+            try {
+                sinks.add(createEventJournal(new File(journalDirectory)));
+            } catch (IOException e) {
+                logger.warn("Event journal is disabled, can't write to " + journalDirectory, e);
+            }
+        }
+        sinks.addAll(load(EventSink.class));
+        return new EventPipeline(logger, load(EventFilter.class), load(EventEnricher.class), sinks,
+                TimestampFormatter.getInstance());
+    }
+
+    private static PassedTestCoalescer createPassedTestCoalescer() {
+        Long latencyMicros = Long.getLong(COALESCING_LATENCY_PROPERTY);
+        return latencyMicros != null
+                ? new PassedTestCoalescer(latencyMicros * 1000, Integer.getInteger("teamcity.steplistener.coalescing.batch.size", 50))
+                : null;
+    }
+
+    private static EventJournal createEventJournal(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        return new EventJournal(File.createTempFile("events-", EventJournalReader.JOURNAL_SUFFIX, directory));
+    }
+
+    private static <T> List<T> load(Class<T> stageClass) {
+        List<T> stages = new ArrayList<>();
+        for (T stage : ServiceLoader.load(stageClass, EventPipeline.class.getClassLoader())) {
+            stages.add(stage);
+        }
+        return stages;
+    }
+
+    /**
+     * @return the encoded message, null if the event was filtered out
+     */
+    EncodedMessage publish(ListenerEvent event) {
+        for (Iterator<EventFilter> iterator = filters.iterator(); iterator.hasNext(); ) {
+            EventFilter filter = iterator.next();
+            try {
+                if (!filter.accept(event)) {
+                    return null;
+                }
+            } catch (RuntimeException e) {
+                disable(iterator, filter, e);
+            }
+        }
+        for (Iterator<EventEnricher> iterator = enrichers.iterator(); iterator.hasNext(); ) {
+            EventEnricher enricher = iterator.next();
+            try {
+                ListenerEvent enriched = enricher.enrich(event);
+                if (enriched != null) {
+                    event = enriched;
+                }
+            } catch (RuntimeException e) {
+                disable(iterator, enricher, e);
+            }
+        }
+        EncodedMessage message = ServiceMessageEncoder.encode(event, timestampFormatter);
+        for (Iterator<EventSink> iterator = sinks.iterator(); iterator.hasNext(); ) {
+            EventSink sink = iterator.next();
+            try {
+                sink.write(event, message);
+            } catch (IOException | RuntimeException e) {
+                disable(iterator, sink, e);
+            }
+        }
+        return message;
+    }
+
+    private void disable(Iterator<?> iterator, Object stage, Exception e) {
+        iterator.remove();
+        logger.warn(stage + " is disabled", e);
+    }
+}
@@ -0,0 +1,17 @@
+package com.github.vase4kin;
+
+import java.io.IOException;
+
+/**
+ * Last stage of the event pipeline, registered in META-INF/services/com.github.vase4kin.EventSink.
+ * <p>
+ * A sink which throws is disabled with a warning, the other sinks keep receiving events.
+ * Every listener has its own sink instances, they are called from the test thread only.
+ */
+public interface EventSink {
+
+    /**
+     * @param message the event encoded as a service message, the same instance is passed to every sink
+     */
+    void write(ListenerEvent event, EncodedMessage message) throws IOException;
+}
@@ -0,0 +1,208 @@
+package com.github.vase4kin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups failures of all listeners by their cause, a circuit breaker for runs where a dependency goes down and
+ * the remaining tests fail the same way.
+ * <p>
+ * The fingerprint is the error type, the first line of the message with digits masked and the top frames. The first
+ * threshold failures of a cluster get full details, later ones get a short reference to the cluster instead, so
+ * their steps are not rendered at all. A cluster trips with a {@code buildProblem} when it reaches the threshold.
+ */
+class FailureClusters {
+
+    static final String THRESHOLD_PROPERTY = "teamcity.steplistener.failure.clusters.threshold";
+
+    private static final int TOP_FRAMES = 3;
+    private static final int MAX_MESSAGE_LENGTH = 200;
+
+    private final int threshold;
+
+    private final ConcurrentMap<String, Cluster> clusters = new ConcurrentHashMap<>();
+
+    /**
+     * Changes of tripped clusters, the summary is printed again only if it changed
+     */
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicLong reportedVersion = new AtomicLong();
+
+    FailureClusters(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * @return clusters shared by all listeners, null if they are not enabled
+     */
+    static FailureClusters getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Counts the failure in its cluster
+     *
+     * @param stackTrace null or empty if unknown
+     * @return the failure in its cluster
+     */
+    Failure add(String errorType, String message, StackTraceElement[] stackTrace) {
+        String fingerprint = getFingerprint(errorType, message, stackTrace);
+        Cluster cluster = clusters.get(fingerprint);
+        if (cluster == null) {
+            Cluster created = new Cluster(fingerprint, getDescription(errorType, message, stackTrace));
+            cluster = clusters.putIfAbsent(fingerprint, created);
+            if (cluster == null) {
+                cluster = created;
+            }
+        }
+        int count = cluster.count.incrementAndGet();
+        if (count >= threshold) {
+            version.incrementAndGet();
+        }
+        return new Failure(cluster, count);
+    }
+
+    /**
+     * @return summary of tripped clusters with the largest first, null if there are none or nothing changed since
+     * the last summary
+     */
+    String getSummary() {
+        long current = version.get();
+        long reported = reportedVersion.get();
+        if (current == reported || !reportedVersion.compareAndSet(reported, current)) {
+            return null;
+        }
+        List<Cluster> tripped = new ArrayList<>();
+        for (Cluster cluster : clusters.values()) {
+            if (cluster.count.get() >= threshold) {
+                tripped.add(cluster);
+            }
+        }
+        Collections.sort(tripped, new Comparator<Cluster>() {
+            @Override
+            public int compare(Cluster first, Cluster second) {
+                return Integer.compare(second.count.get(), first.count.get());
+            }
+        });
+        StringBuilder builder = new StringBuilder("Failure clusters:");
+        for (Cluster cluster : tripped) {
+            builder.append("\r\n").append(cluster.id).append(": ").append(cluster.count.get())
+                    .append(" tests, ").append(cluster.description);
+        }
+        return builder.toString();
+    }
+
+    private static String getFingerprint(String errorType, String message, StackTraceElement[] stackTrace) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(errorType).append('\n');
+        if (message != null) {
+            int length = Math.min(getFirstLineLength(message), MAX_MESSAGE_LENGTH);
+            for (int i = 0; i < length; i++) {
+                char c = message.charAt(i);
+                // ids, ports and timings differ between otherwise identical failures
+                builder.append(c >= '0' && c <= '9' ? '#' : c);
+            }
+        }
+        if (stackTrace != null) {
+            for (int i = 0; i < Math.min(TOP_FRAMES, stackTrace.length); i++) {
+                StackTraceElement frame = stackTrace[i];
+                builder.append('\n').append(frame.getClassName()).append('.').append(frame.getMethodName());
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String getDescription(String errorType, String message, StackTraceElement[] stackTrace) {
+        StringBuilder builder = new StringBuilder(String.valueOf(errorType));
+        if (message != null) {
+            builder.append(": ").append(message, 0, Math.min(getFirstLineLength(message), MAX_MESSAGE_LENGTH));
+        }
+        if (stackTrace != null && stackTrace.length > 0) {
+            builder.append(" at ").append(stackTrace[0]);
+        }
+        return builder.toString();
+    }
+
+    private static int getFirstLineLength(String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\n' || c == '\r') {
+                return i;
+            }
+        }
+        return message.length();
+    }
+
+    private static FailureClusters create() {
+        Integer threshold = Integer.getInteger(THRESHOLD_PROPERTY);
+        return threshold != null ? new FailureClusters(Math.max(1, threshold)) : null;
+    }
+
+    /**
+     * Failure counted in a cluster
+     */
+    class Failure {
+
+        private final Cluster cluster;
+        private final int number;
+
+        private Failure(Cluster cluster, int number) {
+            this.cluster = cluster;
+            this.number = number;
+        }
+
+        /**
+         * @return true if the failure is past the threshold and gets a reference to its cluster instead of details
+         */
+        boolean isShortened() {
+            return number > threshold;
+        }
+
+        /**
+         * @return true for the failure which trips the cluster
+         */
+        boolean isTripping() {
+            return number == threshold;
+        }
+
+        String getShortDetails() {
+            return String.format("Steps are not rendered, %d tests failed before with the same cause, see failure cluster %s: %s",
+                    number - 1, cluster.id, cluster.description);
+        }
+
+        String getBuildProblemDescription() {
+            return String.format("%d tests failed with the same cause, failure cluster %s: %s",
+                    number, cluster.id, cluster.description);
+        }
+
+        /**
+         * @return identity which keeps the build problem of the cluster the same across builds
+         */
+        String getBuildProblemIdentity() {
+            return "failure-cluster-" + cluster.id;
+        }
+    }
+
+    private static class Cluster {
+
+        private final String id;
+        private final String description;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private Cluster(String fingerprint, String description) {
+            this.id = Integer.toHexString(fingerprint.hashCode());
+            this.description = description;
+        }
+    }
+
+    private static class InstanceHolder {
+
+        private static final FailureClusters INSTANCE = create();
+    }
+}
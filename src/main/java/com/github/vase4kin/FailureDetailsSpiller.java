@@ -0,0 +1,120 @@
+package com.github.vase4kin;
+
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes failure details which are over the threshold to gzip files, so the service message can stay short.
+ * <p>
+ * Files are created on the test thread and written on a shared background thread. Written files are returned by
+ * {@link #awaitWrittenFiles()} to be published as artifacts under {@link #ARTIFACTS_PATH}.
+ * Not thread safe, every listener has its own spiller.
+ */
+class FailureDetailsSpiller {
+
+    static final String ARTIFACTS_PATH = "failure-details";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String FILE_SUFFIX = ".txt.gz";
+    private static final int MAX_PREFIX_LENGTH = 100;
+
+    private final File directory;
+    private final int threshold;
+    private final Logger logger;
+
+    private final List<Future<File>> pendingFiles = new ArrayList<>();
+
+    /**
+     * @param threshold max length of details which are printed in full
+     */
+    FailureDetailsSpiller(File directory, int threshold, Logger logger) {
+        this.directory = directory;
+        this.threshold = threshold;
+        this.logger = logger;
+    }
+
+    boolean isOverThreshold(String details) {
+        return details != null && details.length() > threshold;
+    }
+
+    /**
+     * @return path of the file relative to the artifacts root
+     */
+    String spill(String testName, final String details) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        final File file = File.createTempFile(getPrefix(testName), FILE_SUFFIX, directory);
+        pendingFiles.add(WriterHolder.EXECUTOR.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), UTF_8)) {
+                    writer.write(details);
+                }
+                return file;
+            }
+        }));
+        return ARTIFACTS_PATH + "/" + file.getName();
+    }
+
+    /**
+     * @return details cut to the threshold with a reference to the spilled file, a surrogate pair on the threshold
+     * is left out whole
+     */
+    String truncate(String details, String path) {
+        int end = threshold > 0 && Character.isHighSurrogate(details.charAt(threshold - 1)) ? threshold - 1 : threshold;
+        return details.substring(0, end) + "\r\n... full details are in " + path;
+    }
+
+    /**
+     * Waits for the files which are still being written
+     *
+     * @return files which were written since the last call, failed files are logged and skipped
+     */
+    List<File> awaitWrittenFiles() {
+        List<File> files = new ArrayList<>(pendingFiles.size());
+        for (Iterator<Future<File>> iterator = pendingFiles.iterator(); iterator.hasNext(); ) {
+            Future<File> pendingFile = iterator.next();
+            try {
+                files.add(pendingFile.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                logger.warn("Can't write failure details to " + directory, e.getCause());
+            }
+            iterator.remove();
+        }
+        return files;
+    }
+
+    private static String getPrefix(String testName) {
+        String prefix = testName.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (prefix.length() > MAX_PREFIX_LENGTH) {
+            prefix = prefix.substring(0, MAX_PREFIX_LENGTH);
+        }
+        return prefix + "-";
+    }
+
+    /**
+     * Writer thread shared by all listeners, created on the first spilled failure
+     */
+    private static class WriterHolder {
+
+        private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "teamcity-steplistener-failure-details");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,189 @@
+package com.github.vase4kin;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Java Flight Recorder events of the listener, defined at runtime with {@code jdk.jfr.EventFactory}.
+ * <p>
+ * The listener is compiled for Java 7, so JFR classes are only touched through reflection and only when
+ * {@link #ENABLED_PROPERTY} is set on a JVM which has them. Without it {@link #getInstance()} returns null
+ * and the listener skips every call.
+ */
+final class FlightRecorderEvents {
+
+    static final String ENABLED_PROPERTY = "teamcity.steplistener.jfr";
+
+    static final String CALLBACK_EVENT_NAME = "com.github.vase4kin.Callback";
+    static final String TEST_EVENT_NAME = "com.github.vase4kin.Test";
+    static final String DETAILS_RENDERING_EVENT_NAME = "com.github.vase4kin.DetailsRendering";
+
+    private static final String[] CATEGORY = {"Serenity", "TeamCity Step Listener"};
+
+    private final Method newEvent;
+    private final Method getEventType;
+    private final Method isEnabled;
+    private final Method begin;
+    private final Method end;
+    private final Method commit;
+    private final Method set;
+
+    private final Object callbackFactory;
+    private final Object testFactory;
+    private final Object detailsRenderingFactory;
+
+    private FlightRecorderEvents() throws ReflectiveOperationException {
+        Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+        Class<?> eventClass = Class.forName("jdk.jfr.Event");
+        Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+        newEvent = eventFactoryClass.getMethod("newEvent");
+        getEventType = eventFactoryClass.getMethod("getEventType");
+        isEnabled = eventTypeClass.getMethod("isEnabled");
+        begin = eventClass.getMethod("begin");
+        end = eventClass.getMethod("end");
+        commit = eventClass.getMethod("commit");
+        set = eventClass.getMethod("set", int.class, Object.class);
+        Method createFactory = eventFactoryClass.getMethod("create", List.class, List.class);
+
+        callbackFactory = createFactory.invoke(null,
+                getEventAnnotations(CALLBACK_EVENT_NAME, "Listener Callback", "StepListener callback and its output"),
+                Arrays.asList(
+                        newField(String.class, "callback", "Callback", null),
+                        newField(long.class, "bytesEmitted", "Bytes Emitted", "BYTES")));
+        testFactory = createFactory.invoke(null,
+                getEventAnnotations(TEST_EVENT_NAME, "Test", "Test from its start to its finish callback"),
+                Arrays.asList(
+                        newField(String.class, "title", "Title", null),
+                        newField(String.class, "status", "Status", null)));
+        detailsRenderingFactory = createFactory.invoke(null,
+                getEventAnnotations(DETAILS_RENDERING_EVENT_NAME, "Failure Details Rendering",
+                        "Rendering of steps into failure details"),
+                Arrays.asList(
+                        newField(String.class, "title", "Title", null),
+                        newField(int.class, "length", "Length", null)));
+    }
+
+    /**
+     * Event types are registered once per JVM and shared by all listeners
+     *
+     * @return null if the events are not enabled or JFR is not available
+     */
+    static FlightRecorderEvents getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private static FlightRecorderEvents create() {
+        if (!Boolean.getBoolean(ENABLED_PROPERTY)) {
+            return null;
+        }
+        try {
+            return new FlightRecorderEvents();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return event to pass to {@link #commitCallback(Object, String, long)}
+     */
+    Object beginCallback() {
+        return begin(callbackFactory);
+    }
+
+    void commitCallback(Object event, String callback, long bytesEmitted) {
+        commit(event, callback, bytesEmitted);
+    }
+
+    /**
+     * @return event to pass to {@link #commitTest(Object, String, String)}
+     */
+    Object beginTest() {
+        return begin(testFactory);
+    }
+
+    void commitTest(Object event, String title, String status) {
+        commit(event, title, status);
+    }
+
+    /**
+     * @return event to pass to {@link #commitDetailsRendering(Object, String, int)}, rendering can happen on any thread
+     */
+    Object beginDetailsRendering() {
+        return begin(detailsRenderingFactory);
+    }
+
+    void commitDetailsRendering(Object event, String title, int length) {
+        commit(event, title, length);
+    }
+
+    /**
+     * @return null if no recording has the event type enabled
+     */
+    private Object begin(Object factory) {
+        try {
+            if (!(Boolean) isEnabled.invoke(getEventType.invoke(factory))) {
+                return null;
+            }
+            Object event = newEvent.invoke(factory);
+            begin.invoke(event);
+            return event;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    private void commit(Object event, Object... values) {
+        if (event == null) {
+            return;
+        }
+        try {
+            end.invoke(event);
+            for (int i = 0; i < values.length; i++) {
+                set.invoke(event, i, values[i]);
+            }
+            commit.invoke(event);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            // the event is lost, the test run goes on
+        }
+    }
+
+    private static List<Object> getEventAnnotations(String name, String label, String description)
+            throws ReflectiveOperationException {
+        return Arrays.asList(
+                newAnnotation("jdk.jfr.Name", name),
+                newAnnotation("jdk.jfr.Label", label),
+                newAnnotation("jdk.jfr.Description", description),
+                newAnnotation("jdk.jfr.Category", CATEGORY),
+                newAnnotation("jdk.jfr.StackTrace", false));
+    }
+
+    private static Object newField(Class<?> type, String name, String label, String dataAmount)
+            throws ReflectiveOperationException {
+        List<Object> annotations = new ArrayList<>();
+        annotations.add(newAnnotation("jdk.jfr.Label", label));
+        if (dataAmount != null) {
+            annotations.add(newAnnotation("jdk.jfr.DataAmount", dataAmount));
+        }
+        Constructor<?> constructor = Class.forName("jdk.jfr.ValueDescriptor")
+                .getConstructor(Class.class, String.class, List.class);
+        return constructor.newInstance(type, name, Collections.unmodifiableList(annotations));
+    }
+
+    private static Object newAnnotation(String annotationClassName, Object value) throws ReflectiveOperationException {
+        Class<? extends Annotation> annotationClass = Class.forName(annotationClassName).asSubclass(Annotation.class);
+        Constructor<?> constructor = Class.forName("jdk.jfr.AnnotationElement")
+                .getConstructor(Class.class, Object.class);
+        return constructor.newInstance(annotationClass, value);
+    }
+
+    private static class InstanceHolder {
+
+        private static final FlightRecorderEvents INSTANCE = create();
+    }
+}
@@ -0,0 +1,147 @@
+package com.github.vase4kin;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tells listeners to render lighter failure details while the heap is nearly full.
+ * <p>
+ * Usage thresholds are set on heap pools which support them, the JVM notifies when a pool crosses its threshold.
+ * Pooled buffers are dropped right away. The pressure is over when all pools are 10 points below the threshold,
+ * which is checked at most once a second by the listeners themselves. Every change is reported once by the
+ * listener which picks it up first.
+ */
+class HeapPressureMonitor {
+
+    static final String THRESHOLD_PROPERTY = "teamcity.steplistener.heap.pressure.threshold";
+
+    private static final int RECOVERY_MARGIN_PERCENT = 10;
+    private static final long RECOVERY_CHECK_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<MemoryPoolMXBean> pools;
+    private final int thresholdPercent;
+
+    private volatile boolean underPressure;
+    private volatile String pressurePoolName;
+    private final AtomicLong nextRecoveryCheck = new AtomicLong();
+    private final AtomicInteger transitions = new AtomicInteger();
+    private final AtomicInteger reportedTransitions = new AtomicInteger();
+
+    /**
+     * @param pools heap pools with max size which support usage thresholds
+     */
+    HeapPressureMonitor(List<MemoryPoolMXBean> pools, int thresholdPercent) {
+        this.pools = pools;
+        this.thresholdPercent = thresholdPercent;
+    }
+
+    /**
+     * @return monitor shared by all listeners, null if it is not enabled or no heap pool supports thresholds
+     */
+    static HeapPressureMonitor getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private static HeapPressureMonitor create() {
+        Integer thresholdPercent = Integer.getInteger(THRESHOLD_PROPERTY);
+        if (thresholdPercent == null) {
+            return null;
+        }
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.getUsage().getMax() > 0) {
+                pools.add(pool);
+            }
+        }
+        if (pools.isEmpty()) {
+            return null;
+        }
+        final HeapPressureMonitor monitor = new HeapPressureMonitor(pools, Math.max(1, Math.min(99, thresholdPercent)));
+        for (MemoryPoolMXBean pool : pools) {
+            pool.setUsageThreshold(pool.getUsage().getMax() * monitor.thresholdPercent / 100);
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification, Object handback) {
+                if (MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                    MemoryNotificationInfo info = MemoryNotificationInfo.from((CompositeData) notification.getUserData());
+                    monitor.pressureDetected(info.getPoolName(), System.nanoTime());
+                }
+            }
+        }, null, null);
+        return monitor;
+    }
+
+    /**
+     * Called by the JVM notification thread
+     */
+    void pressureDetected(String poolName, long now) {
+        pressurePoolName = poolName;
+        nextRecoveryCheck.set(now + RECOVERY_CHECK_PERIOD_NANOS);
+        if (!underPressure) {
+            underPressure = true;
+            transitions.incrementAndGet();
+        }
+        SuiteOutputBuffer.clearPool();
+        ServiceMessageEncoder.clearPool();
+    }
+
+    /**
+     * @return true if lighter details should be rendered
+     */
+    boolean isUnderPressure(long now) {
+        if (!underPressure) {
+            return false;
+        }
+        long recoveryCheck = nextRecoveryCheck.get();
+        if (now >= recoveryCheck && nextRecoveryCheck.compareAndSet(recoveryCheck, now + RECOVERY_CHECK_PERIOD_NANOS)
+                && isBelowRecoveryLevel()) {
+            underPressure = false;
+            transitions.incrementAndGet();
+        }
+        return underPressure;
+    }
+
+    private boolean isBelowRecoveryLevel() {
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getUsage();
+            if (usage.getUsed() * 100 >= usage.getMax() * (thresholdPercent - RECOVERY_MARGIN_PERCENT)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return warning about the current state if it changed since the last call of any listener, null otherwise
+     */
+    String pollTransition() {
+        int current = transitions.get();
+        int reported = reportedTransitions.get();
+        if (current == reported || !reportedTransitions.compareAndSet(reported, current)) {
+            return null;
+        }
+        return underPressure
+                ? String.format("Heap usage of %s is over %d%%, failure details are summarized without steps",
+                pressurePoolName, thresholdPercent)
+                : String.format("Heap usage is below %d%%, failure details are rendered in full again",
+                thresholdPercent - RECOVERY_MARGIN_PERCENT);
+    }
+
+    private static class InstanceHolder {
+
+        private static final HeapPressureMonitor INSTANCE = create();
+    }
+}
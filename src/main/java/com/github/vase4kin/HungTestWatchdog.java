@@ -0,0 +1,188 @@
+package com.github.vase4kin;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Reports tests which run longer than the timeout with a thread dump of the test thread.
+ * <p>
+ * One daemon thread checks the in-flight tests of all listeners. A hung test is reported once as a
+ * {@code message status='WARNING'}, optionally with a {@code buildProblem}. The test itself can't be failed early,
+ * its testStarted message is printed only when the test finishes. Messages are published by the {@link Reporter} of
+ * the listener from the watchdog thread.
+ */
+class HungTestWatchdog {
+
+    private static final String TIMEOUT_PROPERTY = "teamcity.steplistener.watchdog.timeout.seconds";
+    private static final String BUILD_PROBLEM_PROPERTY = "teamcity.steplistener.watchdog.build.problem";
+
+    private static final long MAX_CHECK_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long timeoutNanos;
+    private final boolean reportBuildProblem;
+
+    private final Set<InFlightTest> inFlightTests =
+            Collections.newSetFromMap(new ConcurrentHashMap<InFlightTest, Boolean>());
+
+    HungTestWatchdog(long timeoutNanos, boolean reportBuildProblem) {
+        this.timeoutNanos = timeoutNanos;
+        this.reportBuildProblem = reportBuildProblem;
+    }
+
+    /**
+     * Publishes messages of a hung test, called from the watchdog thread
+     */
+    interface Reporter {
+
+        void report(ListenerEvent.Type type, Map<String, String> properties);
+    }
+
+    /**
+     * @return watchdog shared by all listeners, null if it is not enabled
+     */
+    static HungTestWatchdog getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private static HungTestWatchdog create() {
+        Long timeoutSeconds = Long.getLong(TIMEOUT_PROPERTY);
+        if (timeoutSeconds == null) {
+            return null;
+        }
+        final HungTestWatchdog watchdog = new HungTestWatchdog(TimeUnit.SECONDS.toNanos(timeoutSeconds),
+                Boolean.getBoolean(BUILD_PROBLEM_PROPERTY));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "teamcity-steplistener-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.min(MAX_CHECK_PERIOD_NANOS, Math.max(1, watchdog.timeoutNanos / 4));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                watchdog.check(System.nanoTime());
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+        return watchdog;
+    }
+
+    /**
+     * Starts watching the current thread
+     *
+     * @return handle to pass to {@link #testFinished(Object)}
+     */
+    Object testStarted(String name, Reporter reporter) {
+        InFlightTest test = new InFlightTest(name, Thread.currentThread(), System.nanoTime(), reporter);
+        inFlightTests.add(test);
+        return test;
+    }
+
+    /**
+     * @param handle null if no test was started
+     */
+    void testFinished(Object handle) {
+        if (handle != null) {
+            inFlightTests.remove(handle);
+        }
+    }
+
+    /**
+     * Reports tests which started more than the timeout before now and were not reported yet
+     */
+    void check(long now) {
+        for (InFlightTest test : inFlightTests) {
+            if (!test.reported && now - test.startTime >= timeoutNanos) {
+                test.reported = true;
+                report(test, now);
+            }
+        }
+    }
+
+    private void report(InFlightTest test, long now) {
+        String text = String.format("Test %s is running for %d s on thread %s",
+                test.name, TimeUnit.NANOSECONDS.toSeconds(now - test.startTime), test.thread.getName());
+        Map<String, String> properties = new HashMap<>();
+        properties.put("text", text + "\r\n" + getThreadDump(test.thread));
+        properties.put("status", "WARNING");
+        test.reporter.report(ListenerEvent.Type.MESSAGE, properties);
+        if (reportBuildProblem) {
+            properties = new HashMap<>();
+            properties.put("description", text);
+            properties.put("identity", getIdentity(test.name));
+            test.reporter.report(ListenerEvent.Type.BUILD_PROBLEM, properties);
+        }
+    }
+
+    static String getThreadDump(Thread thread) {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(new long[]{thread.getId()},
+                threadMXBean.isObjectMonitorUsageSupported(), threadMXBean.isSynchronizerUsageSupported());
+        ThreadInfo threadInfo = threadInfos[0];
+        if (threadInfo == null) {
+            return "Thread " + thread.getName() + " is not alive";
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append('"').append(threadInfo.getThreadName()).append("\" ").append(threadInfo.getThreadState());
+        if (threadInfo.getLockName() != null) {
+            builder.append(" on ").append(threadInfo.getLockName());
+            if (threadInfo.getLockOwnerName() != null) {
+                builder.append(" owned by \"").append(threadInfo.getLockOwnerName()).append('"');
+            }
+        }
+        builder.append("\r\n");
+        StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+        MonitorInfo[] lockedMonitors = threadInfo.getLockedMonitors();
+        for (int depth = 0; depth < stackTrace.length; depth++) {
+            builder.append("\tat ").append(stackTrace[depth]).append("\r\n");
+            for (MonitorInfo monitor : lockedMonitors) {
+                if (monitor.getLockedStackDepth() == depth) {
+                    builder.append("\t- locked ").append(monitor).append("\r\n");
+                }
+            }
+        }
+        for (LockInfo synchronizer : threadInfo.getLockedSynchronizers()) {
+            builder.append("\t- locked ").append(synchronizer).append("\r\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return identity which keeps the build problem of the test the same across builds
+     */
+    private static String getIdentity(String name) {
+        return "hung-test-" + Integer.toHexString(name.hashCode());
+    }
+
+    private static class InFlightTest {
+
+        private final String name;
+        private final Thread thread;
+        private final long startTime;
+        private final Reporter reporter;
+
+        private volatile boolean reported;
+
+        private InFlightTest(String name, Thread thread, long startTime, Reporter reporter) {
+            this.name = name;
+            this.thread = thread;
+            this.startTime = startTime;
+            this.reporter = reporter;
+        }
+    }
+
+    private static class InstanceHolder {
+
+        private static final HungTestWatchdog INSTANCE = create();
+    }
+}
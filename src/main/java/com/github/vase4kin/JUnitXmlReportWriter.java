@@ -0,0 +1,271 @@
+package com.github.vase4kin;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streaming JUnit XML report writer, one TEST-*.xml file per suite.
+ * <p>
+ * Test cases are streamed to a temporary body file as they finish, so memory stays bounded
+ * regardless of the suite size. When the suite finishes the body is flushed and the report is assembled from the
+ * testsuite element with the final counters and the body file. Body files of suites which never finish are deleted
+ * by a shutdown hook.
+ */
+class JUnitXmlReportWriter implements EventSink {
+
+    private static final String ENCODING = "UTF-8";
+    private static final Charset CHARSET = Charset.forName(ENCODING);
+    private static final String REPORT_PREFIX = "TEST-";
+    private static final String REPORT_SUFFIX = ".xml";
+
+    /**
+     * Suites of all writers which are not finished yet
+     */
+    private static final Set<SuiteReport> PENDING_SUITES =
+            Collections.newSetFromMap(new ConcurrentHashMap<SuiteReport, Boolean>());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deletePendingBodies();
+            }
+        }, "teamcity-steplistener-junit-xml-cleanup"));
+    }
+
+    private final File directory;
+
+    private final Deque<SuiteReport> suites = new ArrayDeque<>();
+
+    private XMLOutputFactory xmlOutputFactory;
+
+    private String failureMessage;
+    private String failureDetails;
+
+    JUnitXmlReportWriter(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void write(ListenerEvent event, EncodedMessage message) throws IOException {
+        try {
+            switch (event.getType()) {
+                case SUITE_STARTED:
+                    suiteStarted(event.getName());
+                    break;
+                case TEST_FAILED:
+                    failureMessage = event.getAttribute("message");
+                    failureDetails = event.getAttribute("details");
+                    break;
+                case TEST_FINISHED:
+                    testCase(event.getName(), event.getDuration(), event.getStatus(), failureMessage, failureDetails);
+                    failureMessage = null;
+                    failureDetails = null;
+                    break;
+                case SUITE_FINISHED:
+                    suiteFinished();
+                    break;
+                default:
+                    break;
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    void suiteStarted(String name) throws IOException, XMLStreamException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        File body = File.createTempFile(REPORT_PREFIX, ".part", directory);
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(body));
+        XMLStreamWriter writer = getXmlOutputFactory().createXMLStreamWriter(outputStream, ENCODING);
+        SuiteReport suite = new SuiteReport(name, body, outputStream, writer);
+        suites.push(suite);
+        PENDING_SUITES.add(suite);
+    }
+
+    /**
+     * @param status         null is reported as passed
+     * @param failureMessage ignored unless the test failed
+     * @param failureDetails ignored unless the test failed
+     */
+    void testCase(String name, long duration, ListenerEvent.Status status, String failureMessage,
+                  String failureDetails) throws XMLStreamException {
+        SuiteReport suite = suites.peek();
+        if (suite == null) {
+            return;
+        }
+        XMLStreamWriter writer = suite.writer;
+        writer.writeCharacters("  ");
+        writer.writeStartElement("testcase");
+        writer.writeAttribute("name", clean(name));
+        writer.writeAttribute("classname", clean(suite.name));
+        writer.writeAttribute("time", formatSeconds(duration));
+        if (status != null && status.isFailed()) {
+            boolean error = status == ListenerEvent.Status.ERROR;
+            writer.writeCharacters("\n    ");
+            writer.writeStartElement(error ? "error" : "failure");
+            writer.writeAttribute("message", clean(failureMessage));
+            writer.writeCharacters(clean(failureDetails));
+            writer.writeEndElement();
+            writer.writeCharacters("\n  ");
+            if (error) {
+                suite.errors++;
+            } else {
+                suite.failures++;
+            }
+        } else if (status == ListenerEvent.Status.IGNORED) {
+            writer.writeEmptyElement("skipped");
+            suite.skipped++;
+        }
+        writer.writeEndElement();
+        writer.writeCharacters("\n");
+        suite.tests++;
+        suite.duration += duration;
+    }
+
+    void suiteFinished() throws IOException, XMLStreamException {
+        SuiteReport suite = suites.poll();
+        if (suite == null) {
+            return;
+        }
+        PENDING_SUITES.remove(suite);
+        suite.writer.flush();
+        suite.writer.close();
+        suite.outputStream.close();
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(createReportFile(suite.name)))) {
+            XMLStreamWriter writer = getXmlOutputFactory().createXMLStreamWriter(outputStream, ENCODING);
+            writer.writeStartDocument(ENCODING, "1.0");
+            writer.writeCharacters("\n");
+            writer.writeStartElement("testsuite");
+            writer.writeAttribute("name", clean(suite.name));
+            writer.writeAttribute("tests", String.valueOf(suite.tests));
+            writer.writeAttribute("failures", String.valueOf(suite.failures));
+            writer.writeAttribute("errors", String.valueOf(suite.errors));
+            writer.writeAttribute("skipped", String.valueOf(suite.skipped));
+            writer.writeAttribute("time", formatSeconds(suite.duration));
+            writer.writeCharacters("\n");
+            writer.flush();
+            writer.close();
+            Files.copy(suite.body.toPath(), outputStream);
+            outputStream.write("</testsuite>\n".getBytes(CHARSET));
+        } finally {
+            Files.deleteIfExists(suite.body.toPath());
+        }
+    }
+
+    /**
+     * Deletes body files of suites which are not finished, called when the JVM exits
+     */
+    static void deletePendingBodies() {
+        for (SuiteReport suite : PENDING_SUITES) {
+            PENDING_SUITES.remove(suite);
+            try {
+                suite.outputStream.close();
+            } catch (IOException e) {
+                // the file is deleted anyway
+            }
+            try {
+                Files.deleteIfExists(suite.body.toPath());
+            } catch (IOException e) {
+                // nothing else can be done while the JVM exits
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "JUnit XML report in " + directory;
+    }
+
+    private XMLOutputFactory getXmlOutputFactory() {
+        if (xmlOutputFactory == null) {
+            xmlOutputFactory = XMLOutputFactory.newInstance();
+        }
+        return xmlOutputFactory;
+    }
+
+    /**
+     * Reserves a free report file, writers of parallel flows can finish suites with the same name at the same time
+     *
+     * @return new empty file
+     */
+    private File createReportFile(String suiteName) throws IOException {
+        String fileName = suiteName.replaceAll("[^A-Za-z0-9._-]", "_");
+        File file = new File(directory, REPORT_PREFIX + fileName + REPORT_SUFFIX);
+        for (int i = 1; !file.createNewFile(); i++) {
+            file = new File(directory, REPORT_PREFIX + fileName + "-" + i + REPORT_SUFFIX);
+        }
+        return file;
+    }
+
+    private static String formatSeconds(long duration) {
+        return String.format(Locale.ENGLISH, "%.3f", duration / 1000.0);
+    }
+
+    /**
+     * Drops characters which are not allowed in XML 1.0 documents, e.g. ANSI escapes in stack traces or surrogates
+     * which are not part of a pair
+     */
+    private static String clean(String value) {
+        if (value == null) {
+            return "";
+        }
+        StringBuilder builder = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int length = 1;
+            boolean allowed;
+            if (Character.isHighSurrogate(c)) {
+                allowed = i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1));
+                if (allowed) {
+                    length = 2;
+                }
+            } else if (c >= 0x20) {
+                allowed = !Character.isLowSurrogate(c) && c < 0xFFFE;
+            } else {
+                allowed = c == '\t' || c == '\n' || c == '\r';
+            }
+            if (!allowed && builder == null) {
+                builder = new StringBuilder(value.length());
+                builder.append(value, 0, i);
+            } else if (allowed && builder != null) {
+                builder.append(value, i, i + length);
+            }
+            i += length - 1;
+        }
+        return builder == null ? value : builder.toString();
+    }
+
+    private static class SuiteReport {
+
+        private final String name;
+        private final File body;
+        private final OutputStream outputStream;
+        private final XMLStreamWriter writer;
+
+        private int tests;
+        private int failures;
+        private int errors;
+        private int skipped;
+        private long duration;
+
+        private SuiteReport(String name, File body, OutputStream outputStream, XMLStreamWriter writer) {
+            this.name = name;
+            this.body = body;
+            this.outputStream = outputStream;
+            this.writer = writer;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.github.vase4kin;
+
+/**
+ * Event read from the binary event journal
+ *
+ * @see EventJournalReader
+ */
+public class JournalEvent {
+
+    public enum Type {
+        SUITE_STARTED(1), SUITE_FINISHED(2), TEST_STARTED(3), TEST_FINISHED(4);
+
+        /**
+         * values() copies the array on every call
+         */
+        private static final Type[] VALUES = values();
+
+        private final byte code;
+
+        Type(int code) {
+            this.code = (byte) code;
+        }
+
+        byte getCode() {
+            return code;
+        }
+
+        static Type fromCode(byte code) {
+            for (Type type : VALUES) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("Unknown journal event type " + code);
+        }
+    }
+
+    public enum Status {
+        PASSED(0), FAILED(1), IGNORED(2);
+
+        private static final Status[] VALUES = values();
+
+        private final byte code;
+
+        Status(int code) {
+            this.code = (byte) code;
+        }
+
+        byte getCode() {
+            return code;
+        }
+
+        static Status fromCode(byte code) {
+            for (Status status : VALUES) {
+                if (status.code == code) {
+                    return status;
+                }
+            }
+            throw new IllegalArgumentException("Unknown journal test status " + code);
+        }
+    }
+
+    /**
+     * Example index of a test which is not a row of a data driven scenario
+     */
+    public static final int NO_EXAMPLE = -1;
+
+    private final Type type;
+    private final long timestamp;
+    private final String name;
+    private final int exampleIndex;
+    private final Status status;
+    private final long duration;
+
+    JournalEvent(Type type, long timestamp, String name, int exampleIndex, Status status, long duration) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.name = name;
+        this.exampleIndex = exampleIndex;
+        this.status = status;
+        this.duration = duration;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return event time in milliseconds since epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return suite name or test title, the same as in the service messages
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return zero based example row or {@link #NO_EXAMPLE}, only for test events
+     */
+    public int getExampleIndex() {
+        return exampleIndex;
+    }
+
+    /**
+     * @return test status, only for {@link Type#TEST_FINISHED} events, null otherwise
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return test duration in milliseconds, only for {@link Type#TEST_FINISHED} events
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the event as a single line JSON object
+     */
+    public String toJson() {
+        StringBuilder builder = new StringBuilder(64 + name.length());
+        builder.append("{\"type\":\"").append(type).append('"');
+        builder.append(",\"timestamp\":").append(timestamp);
+        builder.append(",\"name\":");
+        appendJsonString(builder, name);
+        if (type == Type.TEST_STARTED || type == Type.TEST_FINISHED) {
+            builder.append(",\"exampleIndex\":").append(exampleIndex);
+        }
+        if (type == Type.TEST_FINISHED) {
+            builder.append(",\"status\":\"").append(status).append('"');
+            builder.append(",\"duration\":").append(duration);
+        }
+        return builder.append('}').toString();
+    }
+
+    private static void appendJsonString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return toJson();
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.vase4kin;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable event created by {@link TeamCityStepListener} for every service message it prints.
+ * <p>
+ * Attributes are the properties of the service message, test events also carry the status of the test,
+ * so sinks don't have to wait for the next event to know the outcome.
+ */
+public final class ListenerEvent {
+
+    public enum Type {
+        SUITE_STARTED("testSuiteStarted"),
+        SUITE_FINISHED("testSuiteFinished"),
+        TEST_STARTED("testStarted"),
+        TEST_FAILED("testFailed"),
+        TEST_IGNORED("testIgnored"),
+        TEST_FINISHED("testFinished"),
+        TEST_METADATA("testMetadata"),
+        BLOCK_OPENED("blockOpened"),
+        BLOCK_CLOSED("blockClosed"),
+        MESSAGE("message"),
+        BUILD_PROBLEM("buildProblem"),
+        PUBLISH_ARTIFACTS("publishArtifacts", "path"),
+        PROGRESS_MESSAGE("progressMessage", "text");
+
+        private final String messageName;
+        private final String valueAttribute;
+
+        Type(String messageName) {
+            this(messageName, null);
+        }
+
+        Type(String messageName, String valueAttribute) {
+            this.messageName = messageName;
+            this.valueAttribute = valueAttribute;
+        }
+
+        /**
+         * @return service message name
+         */
+        public String getMessageName() {
+            return messageName;
+        }
+
+        /**
+         * @return attribute printed as the single unnamed value of the service message, null for messages with
+         * named properties
+         */
+        public String getValueAttribute() {
+            return valueAttribute;
+        }
+
+        public boolean isTestEvent() {
+            return this == TEST_STARTED || this == TEST_FAILED || this == TEST_IGNORED || this == TEST_FINISHED
+                    || this == TEST_METADATA;
+        }
+    }
+
+    /**
+     * {@link #ERROR} is a failure caused by an exception which is not an assertion error
+     */
+    public enum Status {
+        PASSED, FAILED, IGNORED, ERROR;
+
+        /**
+         * @return true for failures and errors
+         */
+        public boolean isFailed() {
+            return this == FAILED || this == ERROR;
+        }
+    }
+
+    /**
+     * Example index of a test which is not a row of a data driven scenario
+     */
+    public static final int NO_EXAMPLE = -1;
+
+    private final Type type;
+    private final long timestamp;
+    private final Map<String, String> attributes;
+    private final Status status;
+    private final int exampleIndex;
+    private final long duration;
+
+    /**
+     * @param attributes copied, the order of the copy is the order of service message properties
+     */
+    ListenerEvent(Type type, long timestamp, Map<String, String> attributes, Status status, int exampleIndex,
+                  long duration) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.attributes = Collections.unmodifiableMap(new HashMap<>(attributes));
+        this.status = status;
+        this.exampleIndex = exampleIndex;
+        this.duration = duration;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return event time in milliseconds since epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return suite name, test title, block name or message text
+     */
+    public String getName() {
+        if (type == Type.TEST_METADATA) {
+            return attributes.get("testName");
+        }
+        String name = attributes.get("name");
+        return name != null ? name : attributes.get("text");
+    }
+
+    /**
+     * @return unmodifiable service message properties
+     */
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public String getAttribute(String key) {
+        return attributes.get(key);
+    }
+
+    /**
+     * @return outcome of the test for test events, null otherwise
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return zero based example row or {@link #NO_EXAMPLE}
+     */
+    public int getExampleIndex() {
+        return exampleIndex;
+    }
+
+    /**
+     * @return test duration in milliseconds, only for {@link Type#TEST_FINISHED} events
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return copy of the event with an additional service message property
+     */
+    public ListenerEvent withAttribute(String key, String value) {
+        Map<String, String> copy = new HashMap<>(attributes);
+        copy.put(key, value);
+        return new ListenerEvent(type, timestamp, copy, status, exampleIndex, duration);
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + attributes;
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.vase4kin;
+
+/**
+ * Decides when passing tests are coalesced and collects their messages into one batch.
+ * <p>
+ * Pressure is detected from the exponentially weighted average latency of a single line written to the logger,
+ * it starts when the average goes over the threshold and ends when it drops below half of it.
+ * Not thread safe, every listener has its own coalescer.
+ */
+class PassedTestCoalescer {
+
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final long latencyThresholdNanos;
+    private final int batchSize;
+
+    private final StringBuilder batch = new StringBuilder();
+    private int batchTests;
+    private int batchLines;
+
+    private double averageLatencyNanos;
+    private boolean underPressure;
+
+    private long coalescedMessagesCount;
+
+    /**
+     * @param batchSize number of passing tests flushed with one logger call
+     */
+    PassedTestCoalescer(long latencyThresholdNanos, int batchSize) {
+        this.latencyThresholdNanos = latencyThresholdNanos;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param lines number of service messages written by the measured logger call
+     */
+    void recordLatency(long latencyNanos, int lines) {
+        double lineLatency = (double) latencyNanos / lines;
+        averageLatencyNanos = averageLatencyNanos == 0
+                ? lineLatency
+                : averageLatencyNanos + LATENCY_WEIGHT * (lineLatency - averageLatencyNanos);
+        if (averageLatencyNanos > latencyThresholdNanos) {
+            underPressure = true;
+        } else if (averageLatencyNanos < latencyThresholdNanos / 2) {
+            underPressure = false;
+        }
+    }
+
+    boolean isUnderPressure() {
+        return underPressure;
+    }
+
+    /**
+     * @param testMessages messages of one passing test, from testStarted to testFinished
+     */
+    void add(String... testMessages) {
+        for (String message : testMessages) {
+            if (batch.length() > 0) {
+                batch.append('\n');
+            }
+            batch.append(message);
+        }
+        batchTests++;
+        batchLines += testMessages.length;
+        coalescedMessagesCount += testMessages.length;
+    }
+
+    boolean isFull() {
+        return batchTests >= batchSize;
+    }
+
+    boolean isEmpty() {
+        return batchTests == 0;
+    }
+
+    /**
+     * @return number of lines in the batch
+     */
+    int getLines() {
+        return batchLines;
+    }
+
+    /**
+     * @return batched messages separated with line breaks, the batch is empty afterwards
+     */
+    String drain() {
+        String messages = batch.toString();
+        batch.setLength(0);
+        batchTests = 0;
+        batchLines = 0;
+        return messages;
+    }
+
+    /**
+     * @return number of service messages which were written as a part of a batch
+     */
+    long getCoalescedMessagesCount() {
+        return coalescedMessagesCount;
+    }
+}
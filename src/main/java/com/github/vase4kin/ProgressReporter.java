@@ -0,0 +1,184 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts finished tests of all listeners and builds progress messages with an ETA.
+ * <p>
+ * Counters are atomic, no lock is taken on the test threads. At most one message per interval is built, by the
+ * thread which wins the race for the interval. The expected number of tests comes from a property or from the file
+ * of the previous run, the file is rewritten with the current count when an outermost suite finishes.
+ */
+class ProgressReporter {
+
+    static final String EXPECTED_TESTS_PROPERTY = "teamcity.steplistener.progress.expected.tests";
+    static final String FILE_PROPERTY = "teamcity.steplistener.progress.file";
+    static final String INTERVAL_PROPERTY = "teamcity.steplistener.progress.interval.seconds";
+
+    /**
+     * Weight of the latest interval in the rolling rate
+     */
+    private static final double RATE_WEIGHT = 0.3;
+
+    private final long expectedTests;
+    private final long intervalNanos;
+    private final File file;
+
+    private final AtomicLong completedTests = new AtomicLong();
+    private final AtomicLong failedTests = new AtomicLong();
+    private final AtomicLong nextReportTime;
+    private final AtomicReference<Sample> lastSample;
+
+    /**
+     * Not synchronized, a virtual thread writing the file would pin its carrier
+     */
+    private final ReentrantLock saveLock = new ReentrantLock();
+
+    /**
+     * @param expectedTests 0 if unknown
+     * @param file          null if the count is not kept for the next run
+     */
+    ProgressReporter(long expectedTests, long intervalNanos, File file, long startTime) {
+        this.expectedTests = expectedTests;
+        this.intervalNanos = intervalNanos;
+        this.file = file;
+        this.nextReportTime = new AtomicLong(startTime + intervalNanos);
+        this.lastSample = new AtomicReference<>(new Sample(startTime, 0, -1));
+    }
+
+    /**
+     * @return reporter shared by all listeners, null if progress is not enabled
+     */
+    static ProgressReporter getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private static ProgressReporter create() {
+        Long expectedTests = Long.getLong(EXPECTED_TESTS_PROPERTY);
+        String path = System.getProperty(FILE_PROPERTY);
+        if (expectedTests == null && path == null) {
+            return null;
+        }
+        File file = path != null ? new File(path) : null;
+        if (expectedTests == null) {
+            expectedTests = readTestsCount(file);
+        }
+        return new ProgressReporter(expectedTests, TimeUnit.SECONDS.toNanos(Long.getLong(INTERVAL_PROPERTY, 10)),
+                file, System.nanoTime());
+    }
+
+    /**
+     * @return count written by the previous run, 0 if there is none
+     */
+    static long readTestsCount(File file) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), EventJournal.UTF_8))) {
+            String line = reader.readLine();
+            return line != null ? Math.max(0, Long.parseLong(line.trim())) : 0;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Counts the test
+     *
+     * @return progress text if the interval is over and this call won it, null otherwise
+     */
+    String testFinished(boolean failed, long now) {
+        long completed = completedTests.incrementAndGet();
+        long failedCount = failed ? failedTests.incrementAndGet() : failedTests.get();
+        long reportTime = nextReportTime.get();
+        if (now < reportTime || !nextReportTime.compareAndSet(reportTime, now + intervalNanos)) {
+            return null;
+        }
+        Sample previous = lastSample.get();
+        double intervalRate = (completed - previous.completedTests) * 1e9 / Math.max(1, now - previous.time);
+        double rate = previous.rate < 0 ? intervalRate : previous.rate + RATE_WEIGHT * (intervalRate - previous.rate);
+        lastSample.compareAndSet(previous, new Sample(now, completed, rate));
+        return format(completed, failedCount, rate);
+    }
+
+    private String format(long completed, long failed, double rate) {
+        StringBuilder builder = new StringBuilder("Tests: ").append(completed);
+        if (expectedTests > 0) {
+            builder.append('/').append(expectedTests);
+        }
+        builder.append(" completed, ").append(failed).append(" failed, ")
+                .append(String.format(Locale.ROOT, "%.1f tests/s", rate));
+        if (completed < expectedTests && rate > 0) {
+            builder.append(", ETA ").append(formatDuration((long) ((expectedTests - completed) / rate)));
+        }
+        return builder.toString();
+    }
+
+    static String formatDuration(long seconds) {
+        if (seconds >= 3600) {
+            return String.format("%dh %02dm", seconds / 3600, seconds % 3600 / 60);
+        }
+        if (seconds >= 60) {
+            return String.format("%dm %02ds", seconds / 60, seconds % 60);
+        }
+        return seconds + "s";
+    }
+
+    /**
+     * Writes the number of completed tests for the next run, the file is replaced as a whole
+     */
+    void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        saveLock.lock();
+        try {
+            write();
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    private void write() throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create directory " + directory);
+        }
+        File temporaryFile = File.createTempFile(file.getName(), ".tmp", directory);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temporaryFile), EventJournal.UTF_8)) {
+            writer.write(completedTests.get() + "\n");
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    private static class Sample {
+
+        private final long time;
+        private final long completedTests;
+
+        /**
+         * Tests per second, negative until the first interval is over
+         */
+        private final double rate;
+
+        private Sample(long time, long completedTests, double rate) {
+            this.time = time;
+            this.completedTests = completedTests;
+            this.rate = rate;
+        }
+    }
+
+    private static class InstanceHolder {
+
+        private static final ProgressReporter INSTANCE = create();
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.vase4kin;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * CPU time and allocated bytes of the current thread with GC time and count of the JVM.
+ * <p>
+ * Snapshots are taken at test start and finish, their difference is the usage of the test. Allocated bytes are
+ * only available on HotSpot, they are {@link #UNAVAILABLE} elsewhere, the same for CPU time if it is not supported.
+ */
+final class ResourceUsage {
+
+    static final long UNAVAILABLE = -1;
+
+    static final ResourceUsage ZERO = new ResourceUsage(0, 0, 0, 0);
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final List<GarbageCollectorMXBean> GARBAGE_COLLECTOR_MX_BEANS = ManagementFactory.getGarbageCollectorMXBeans();
+
+    private final long cpuTimeNanos;
+    private final long allocatedBytes;
+    private final long gcTimeMillis;
+    private final long gcCount;
+
+    ResourceUsage(long cpuTimeNanos, long allocatedBytes, long gcTimeMillis, long gcCount) {
+        this.cpuTimeNanos = cpuTimeNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.gcTimeMillis = gcTimeMillis;
+        this.gcCount = gcCount;
+    }
+
+    static ResourceUsage snapshot() {
+        long cpuTimeNanos = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()
+                ? THREAD_MX_BEAN.getCurrentThreadCpuTime()
+                : UNAVAILABLE;
+        long gcTimeMillis = 0;
+        long gcCount = 0;
+        for (GarbageCollectorMXBean garbageCollectorMXBean : GARBAGE_COLLECTOR_MX_BEANS) {
+            gcTimeMillis += Math.max(0, garbageCollectorMXBean.getCollectionTime());
+            gcCount += Math.max(0, garbageCollectorMXBean.getCollectionCount());
+        }
+        return new ResourceUsage(cpuTimeNanos, getCurrentThreadAllocatedBytes(), gcTimeMillis, gcCount);
+    }
+
+    private static long getCurrentThreadAllocatedBytes() {
+        if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+            if (threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled()) {
+                return threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return UNAVAILABLE;
+    }
+
+    /**
+     * @return usage between the earlier snapshot and this one
+     */
+    ResourceUsage minus(ResourceUsage earlier) {
+        return new ResourceUsage(
+                difference(cpuTimeNanos, earlier.cpuTimeNanos),
+                difference(allocatedBytes, earlier.allocatedBytes),
+                gcTimeMillis - earlier.gcTimeMillis,
+                gcCount - earlier.gcCount);
+    }
+
+    ResourceUsage plus(ResourceUsage other) {
+        return new ResourceUsage(
+                sum(cpuTimeNanos, other.cpuTimeNanos),
+                sum(allocatedBytes, other.allocatedBytes),
+                gcTimeMillis + other.gcTimeMillis,
+                gcCount + other.gcCount);
+    }
+
+    long getCpuTimeNanos() {
+        return cpuTimeNanos;
+    }
+
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    long getGcTimeMillis() {
+        return gcTimeMillis;
+    }
+
+    long getGcCount() {
+        return gcCount;
+    }
+
+    private static long difference(long value, long earlier) {
+        return value == UNAVAILABLE || earlier == UNAVAILABLE ? UNAVAILABLE : value - earlier;
+    }
+
+    private static long sum(long value, long other) {
+        return value == UNAVAILABLE || other == UNAVAILABLE ? UNAVAILABLE : value + other;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CPU time %s, allocated %s, GC time %d ms in %d collections",
+                cpuTimeNanos == UNAVAILABLE ? "n/a" : cpuTimeNanos / 1000000 + " ms",
+                allocatedBytes == UNAVAILABLE ? "n/a" : allocatedBytes + " bytes",
+                gcTimeMillis, gcCount);
+    }
+}
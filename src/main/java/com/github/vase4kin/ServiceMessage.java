@@ -0,0 +1,185 @@
+package com.github.vase4kin;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Service message found by {@link ServiceMessageReader}, a view over the bytes of the log file.
+ * <p>
+ * Nothing is decoded until it is asked for, attribute values are unescaped on access. The instance is reused
+ * for every message and is only valid inside {@link ServiceMessageReader.Handler#onMessage(ServiceMessage)},
+ * decoded strings and {@link #getAttributes()} can be kept.
+ */
+public final class ServiceMessage {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * values() copies the array on every call
+     */
+    private static final ListenerEvent.Type[] TYPES = ListenerEvent.Type.values();
+
+    private ByteBuffer buffer;
+    private int nameStart;
+    private int nameEnd;
+    private int valueStart = -1;
+    private int valueEnd;
+
+    /**
+     * key start, key end, value start, value end for every attribute
+     */
+    private int[] attributes = new int[32];
+    private int attributesCount;
+
+    private byte[] scratch = new byte[256];
+
+    void reset(ByteBuffer buffer, int nameStart, int nameEnd) {
+        this.buffer = buffer;
+        this.nameStart = nameStart;
+        this.nameEnd = nameEnd;
+        this.valueStart = -1;
+        this.attributesCount = 0;
+    }
+
+    void setValue(int start, int end) {
+        valueStart = start;
+        valueEnd = end;
+    }
+
+    void addAttribute(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        int offset = attributesCount * 4;
+        if (offset + 4 > attributes.length) {
+            attributes = Arrays.copyOf(attributes, attributes.length * 2);
+        }
+        attributes[offset] = keyStart;
+        attributes[offset + 1] = keyEnd;
+        attributes[offset + 2] = valueStart;
+        attributes[offset + 3] = valueEnd;
+        attributesCount++;
+    }
+
+    /**
+     * @return service message name, e.g. testStarted
+     */
+    public String getName() {
+        return decode(nameStart, nameEnd, false);
+    }
+
+    /**
+     * @return type of the message if the listener prints such messages, null otherwise
+     */
+    public ListenerEvent.Type getType() {
+        for (ListenerEvent.Type type : TYPES) {
+            if (equalsAscii(nameStart, nameEnd, type.getMessageName())) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return unescaped value of a single value message like publishArtifacts, null for messages with attributes
+     */
+    public String getValue() {
+        return valueStart < 0 ? null : decode(valueStart, valueEnd, true);
+    }
+
+    /**
+     * @return unescaped attribute value, only this value is decoded
+     */
+    public String getAttribute(String key) {
+        for (int i = 0; i < attributesCount; i++) {
+            int offset = i * 4;
+            if (equalsAscii(attributes[offset], attributes[offset + 1], key)) {
+                return decode(attributes[offset + 2], attributes[offset + 3], true);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return all attributes decoded and unescaped
+     */
+    public Map<String, String> getAttributes() {
+        Map<String, String> decoded = new HashMap<>();
+        for (int i = 0; i < attributesCount; i++) {
+            int offset = i * 4;
+            decoded.put(decode(attributes[offset], attributes[offset + 1], false),
+                    decode(attributes[offset + 2], attributes[offset + 3], true));
+        }
+        return decoded;
+    }
+
+    public int getAttributesCount() {
+        return attributesCount;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + (valueStart < 0 ? " " + getAttributes() : " '" + getValue() + "'");
+    }
+
+    private boolean equalsAscii(int start, int end, String value) {
+        if (end - start != value.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) != value.charAt(i - start)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reverses {@link ServiceMessageEncoder#escape(String)}. "||" followed by "[" or "]" was a backslash escaped
+     * bracket, any other "||" was "\|". A bare "|" is not escaped by the listener, so values with a bare "|" in front of
+     * a character which has an escape are not restored exactly.
+     */
+    private String decode(int start, int end, boolean unescape) {
+        if (scratch.length < end - start) {
+            scratch = new byte[Math.max(end - start, scratch.length * 2)];
+        }
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (unescape && b == '|' && i + 1 < end) {
+                byte next = buffer.get(i + 1);
+                switch (next) {
+                    case '|':
+                        byte afterNext = i + 2 < end ? buffer.get(i + 2) : 0;
+                        scratch[length++] = '\\';
+                        if (afterNext == '[' || afterNext == ']') {
+                            scratch[length++] = afterNext;
+                            i += 2;
+                        } else {
+                            scratch[length++] = '|';
+                            i++;
+                        }
+                        continue;
+                    case '\'':
+                    case '[':
+                    case ']':
+                        scratch[length++] = next;
+                        i++;
+                        continue;
+                    case 'n':
+                        scratch[length++] = '\n';
+                        i++;
+                        continue;
+                    case 'r':
+                        scratch[length++] = '\r';
+                        i++;
+                        continue;
+                    default:
+                        break;
+                }
+            }
+            scratch[length++] = b;
+        }
+        return new String(scratch, 0, length, UTF_8);
+    }
+}
@@ -0,0 +1,277 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects service messages of many test forks and prints them as one stream:
+ * <pre>
+ * java -cp serenity-teamcity-steplistener.jar com.github.vase4kin.ServiceMessageAggregator unix:/tmp/steplistener.sock
+ * </pre>
+ * Forks started with {@code -Dteamcity.steplistener.aggregator.address} set to the same address send their encoded
+ * messages, one per line, instead of printing them. Every connection has a reader thread, lines are queued in the
+ * order they arrive and a single writer prints them in large batches. Messages of a fork without a flow get the flow
+ * of its connection, so TeamCity can tell forks apart. The address is {@code unix:path}, which needs Java 16, or
+ * {@code host:port}.
+ */
+public class ServiceMessageAggregator implements Closeable {
+
+    static final String UNIX_PREFIX = "unix:";
+
+    private static final byte[] MARKER = "##teamcity[".getBytes(EventJournal.UTF_8);
+    private static final byte[] FLOW_ID_ATTRIBUTE = " flowId='".getBytes(EventJournal.UTF_8);
+
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private final ServerSocketChannel server;
+    private final OutputStream out;
+
+    private final BlockingQueue<byte[]> lines = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicInteger connections = new AtomicInteger();
+
+    public ServiceMessageAggregator(ServerSocketChannel server, OutputStream out) {
+        this.server = server;
+        this.out = new BufferedOutputStream(out, WRITE_BUFFER_SIZE);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.err.println("Usage: ServiceMessageAggregator unix:path|host:port");
+            System.exit(2);
+        }
+        ServiceMessageAggregator aggregator = new ServiceMessageAggregator(bind(args[0]), System.out);
+        aggregator.start();
+        aggregator.accept();
+    }
+
+    /**
+     * Starts the writer thread, connections are accepted by {@link #accept()}
+     */
+    public void start() {
+        startDaemon(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "teamcity-steplistener-aggregator-writer");
+    }
+
+    /**
+     * Accepts connections until the aggregator is closed
+     */
+    public void accept() throws IOException {
+        while (true) {
+            final SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            final String flowId = "fork-" + connections.incrementAndGet();
+            startDaemon(new Runnable() {
+                @Override
+                public void run() {
+                    read(channel, flowId);
+                }
+            }, "teamcity-steplistener-aggregator-" + flowId);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    private void read(SocketChannel channel, String flowId) {
+        byte[] flowIdBytes = flowId.getBytes(EventJournal.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    byte b = buffer.get();
+                    if (b == '\n') {
+                        lines.put(tagFlow(line.toByteArray(), flowIdBytes));
+                        line.reset();
+                    } else {
+                        line.write(b);
+                    }
+                }
+                buffer.clear();
+            }
+        } catch (IOException e) {
+            // the fork is gone, its partial line is dropped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(channel);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to release
+        }
+    }
+
+    private void write() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(lines.take());
+                lines.drainTo(batch);
+                for (byte[] line : batch) {
+                    out.write(line);
+                    out.write('\n');
+                }
+                batch.clear();
+                if (lines.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // nothing can be printed anymore
+        }
+    }
+
+    /**
+     * Adds the flow to a service message with attributes which has none, single value messages can't have a flow
+     */
+    static byte[] tagFlow(byte[] line, byte[] flowId) {
+        if (!startsWith(line, MARKER) || line[line.length - 1] != ']' || indexOf(line, FLOW_ID_ATTRIBUTE) >= 0) {
+            return line;
+        }
+        int nameEnd = MARKER.length;
+        while (nameEnd < line.length && line[nameEnd] != ' ' && line[nameEnd] != ']') {
+            nameEnd++;
+        }
+        if (nameEnd + 1 < line.length && line[nameEnd] == ' ' && line[nameEnd + 1] == '\'') {
+            return line;
+        }
+        int end = line.length - 1;
+        byte[] tagged = new byte[line.length + FLOW_ID_ATTRIBUTE.length + flowId.length + 1];
+        System.arraycopy(line, 0, tagged, 0, end);
+        System.arraycopy(FLOW_ID_ATTRIBUTE, 0, tagged, end, FLOW_ID_ATTRIBUTE.length);
+        System.arraycopy(flowId, 0, tagged, end + FLOW_ID_ATTRIBUTE.length, flowId.length);
+        tagged[tagged.length - 2] = '\'';
+        tagged[tagged.length - 1] = ']';
+        return tagged;
+    }
+
+    private static boolean startsWith(byte[] line, byte[] prefix) {
+        if (line.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] line, byte[] value) {
+        for (int i = 0; i + value.length <= line.length; i++) {
+            int j = 0;
+            while (j < value.length && line[i + j] == value[j]) {
+                j++;
+            }
+            if (j == value.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void startDaemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Binds the server, the file of a Unix domain socket left by a previous aggregator is removed
+     */
+    static ServerSocketChannel bind(String address) throws IOException {
+        if (address.startsWith(UNIX_PREFIX)) {
+            String path = address.substring(UNIX_PREFIX.length());
+            Files.deleteIfExists(Paths.get(path));
+            ServerSocketChannel server = (ServerSocketChannel) openUnixChannel(ServerSocketChannel.class);
+            server.bind(getUnixAddress(path));
+            return server;
+        }
+        return ServerSocketChannel.open().bind(getInetAddress(address));
+    }
+
+    /**
+     * @return blocking channel connected to the aggregator
+     */
+    static SocketChannel connect(String address) throws IOException {
+        if (address.startsWith(UNIX_PREFIX)) {
+            SocketChannel channel = (SocketChannel) openUnixChannel(SocketChannel.class);
+            try {
+                channel.connect(getUnixAddress(address.substring(UNIX_PREFIX.length())));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+        return SocketChannel.open(getInetAddress(address));
+    }
+
+    private static InetSocketAddress getInetAddress(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IOException("Address should be unix:path or host:port, got " + address);
+        }
+        try {
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Address should be unix:path or host:port, got " + address, e);
+        }
+    }
+
+    /**
+     * Unix domain sockets came with Java 16, the build targets Java 7 so they are looked up reflectively
+     */
+    private static Object openUnixChannel(Class<?> channelClass) throws IOException {
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            return channelClass.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets require Java 16", e);
+        }
+    }
+
+    private static SocketAddress getUnixAddress(String path) throws IOException {
+        try {
+            Method of = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+            return (SocketAddress) of.invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets require Java 16", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.vase4kin;
+
+import java.util.Map;
+
+/**
+ * Encodes events as TeamCity service messages
+ */
+final class ServiceMessageEncoder {
+
+    private static final String MESSAGE_PREFIX = "##teamcity[";
+    private static final String TIMESTAMP_PROPERTY = "timestamp";
+
+    /**
+     * Builders over the max capacity, e.g. of messages with long failure details, are not kept
+     */
+    private static final StringBuilderPool BUFFERS = new StringBuilderPool(
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()), 512, 64 * 1024);
+
+    private ServiceMessageEncoder() {
+    }
+
+    static EncodedMessage encode(ListenerEvent event) {
+        return encode(event, null);
+    }
+
+    /**
+     * @param timestampFormatter null to leave the timestamp to TeamCity, single value messages never have one
+     */
+    static EncodedMessage encode(ListenerEvent event, TimestampFormatter timestampFormatter) {
+        ListenerEvent.Type type = event.getType();
+        if (type.getValueAttribute() != null) {
+            StringBuilder builder = BUFFERS.acquire();
+            try {
+                builder.append(MESSAGE_PREFIX).append(type.getMessageName()).append(" '");
+                appendEscaped(builder, event.getAttribute(type.getValueAttribute()), 0);
+                return new EncodedMessage(builder.append("']").toString());
+            } finally {
+                BUFFERS.release(builder);
+            }
+        }
+        return new EncodedMessage(format(type.getMessageName(), event.getAttributes(), timestampFormatter,
+                event.getTimestamp()));
+    }
+
+    /**
+     * @return {@code ##teamcity[name  key='value' ...]}, every property is preceded by a space
+     */
+    static String format(String messageName, Map<String, String> properties) {
+        return format(messageName, properties, null, 0);
+    }
+
+    /**
+     * @param timestampFormatter null to leave the timestamp to TeamCity, a timestamp property is kept as it is
+     * @param timestamp          event time in milliseconds since epoch
+     */
+    static String format(String messageName, Map<String, String> properties, TimestampFormatter timestampFormatter,
+                         long timestamp) {
+        StringBuilder builder = BUFFERS.acquire();
+        try {
+            builder.append(MESSAGE_PREFIX).append(messageName).append(' ');
+            for (Map.Entry<String, String> property : properties.entrySet()) {
+                builder.append(' ').append(property.getKey()).append("='");
+                appendEscaped(builder, property.getValue(), 0);
+                builder.append('\'');
+            }
+            if (timestampFormatter != null && !properties.containsKey(TIMESTAMP_PROPERTY)) {
+                builder.append(' ').append(TIMESTAMP_PROPERTY).append("='");
+                timestampFormatter.append(builder, timestamp);
+                builder.append('\'');
+            }
+            return builder.append(']').toString();
+        } finally {
+            BUFFERS.release(builder);
+        }
+    }
+
+    /**
+     * Drops pooled builders, new ones are allocated on demand
+     */
+    static void clearPool() {
+        BUFFERS.clear();
+    }
+
+    /**
+     * Single pass escaping, produces the same output as replacing "\\|", "'", "\n", "\r", "\\[", "\\]", "[", "]"
+     * one after another
+     */
+    static String escape(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (getReplacement(value, i) != null) {
+                StringBuilder builder = new StringBuilder(length + 16);
+                builder.append(value, 0, i);
+                appendEscaped(builder, value, i);
+                return builder.toString();
+            }
+        }
+        return value;
+    }
+
+    private static void appendEscaped(StringBuilder builder, String value, int from) {
+        int length = value.length();
+        for (int i = from; i < length; i++) {
+            String replacement = getReplacement(value, i);
+            if (replacement == null) {
+                builder.append(value.charAt(i));
+            } else {
+                builder.append(replacement);
+                if (value.charAt(i) == '\\') {
+                    // the backslash and the character after it are replaced together
+                    i++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return replacement of the character at the index, null if it is not escaped
+     */
+    private static String getReplacement(String value, int i) {
+        switch (value.charAt(i)) {
+            case '\\':
+                char next = i + 1 < value.length() ? value.charAt(i + 1) : 0;
+                if (next == '|') {
+                    return "||";
+                } else if (next == '[') {
+                    return "||[";
+                } else if (next == ']') {
+                    return "||]";
+                }
+                return null;
+            case '\'':
+                return "|'";
+            case '\n':
+                return "|n";
+            case '\r':
+                return "|r";
+            case '[':
+                return "|[";
+            case ']':
+                return "|]";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.github.vase4kin;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streaming reader of the service messages printed by {@link TeamCityStepListener}, e.g. in a build log.
+ * <p>
+ * The file is memory-mapped in chunks and scanned for {@code ##teamcity[} in place, only message boundaries are
+ * located while scanning, names and values are decoded when the handler asks for them. Lines may have a prefix
+ * like a timestamp, malformed messages are skipped. Chunks end at a line break, so a line must fit into a chunk.
+ */
+public class ServiceMessageReader implements Closeable {
+
+    public interface Handler {
+
+        /**
+         * @param message valid only during the call
+         */
+        void onMessage(ServiceMessage message);
+    }
+
+    private static final byte[] MARKER = "##teamcity[".getBytes(EventJournal.UTF_8);
+
+    private static final int CHUNK_SIZE = 256 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final int chunkSize;
+
+    private final ServiceMessage message = new ServiceMessage();
+
+    public ServiceMessageReader(File file) throws IOException {
+        this(file, CHUNK_SIZE);
+    }
+
+    ServiceMessageReader(File file, int chunkSize) throws IOException {
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Calls the handler for every service message in the file in the order of the file
+     *
+     * @return number of messages
+     */
+    public long read(Handler handler) throws IOException {
+        long count = 0;
+        long size = channel.size();
+        long position = 0;
+        while (position < size) {
+            int length = (int) Math.min(chunkSize, size - position);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            boolean lastChunk = position + length == size;
+            int end = lastChunk ? length : lastLineEnd(buffer, length);
+            if (end == 0) {
+                throw new IOException("Line at " + position + " is longer than " + chunkSize + " bytes");
+            }
+            count += scan(buffer, end, handler);
+            position += end;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static int lastLineEnd(MappedByteBuffer buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private long scan(MappedByteBuffer buffer, int end, Handler handler) {
+        long count = 0;
+        int i = 0;
+        byte first = MARKER[0];
+        while (i < end) {
+            if (buffer.get(i) != first || !startsWithMarker(buffer, i, end)) {
+                i++;
+                continue;
+            }
+            int messageEnd = parse(buffer, i + MARKER.length, end);
+            if (messageEnd < 0) {
+                i++;
+                continue;
+            }
+            handler.onMessage(message);
+            count++;
+            i = messageEnd;
+        }
+        return count;
+    }
+
+    private static boolean startsWithMarker(MappedByteBuffer buffer, int position, int end) {
+        if (position + MARKER.length > end) {
+            return false;
+        }
+        for (int i = 1; i < MARKER.length; i++) {
+            if (buffer.get(position + i) != MARKER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses {@code name 'value'} or {@code name key='value' ...} up to the closing bracket
+     *
+     * @return position after the message, -1 if it is malformed
+     */
+    private int parse(MappedByteBuffer buffer, int start, int end) {
+        int i = start;
+        while (i < end && isNameByte(buffer.get(i))) {
+            i++;
+        }
+        if (i == start) {
+            return -1;
+        }
+        message.reset(buffer, start, i);
+        while (true) {
+            i = skipSpaces(buffer, i, end);
+            if (i >= end) {
+                return -1;
+            }
+            byte b = buffer.get(i);
+            if (b == ']') {
+                return i + 1;
+            }
+            if (b == '\'') {
+                int valueEnd = findValueEnd(buffer, i + 1, end);
+                if (valueEnd < 0 || message.getAttributesCount() > 0) {
+                    return -1;
+                }
+                message.setValue(i + 1, valueEnd);
+                i = valueEnd + 1;
+                continue;
+            }
+            int keyStart = i;
+            while (i < end && isNameByte(buffer.get(i))) {
+                i++;
+            }
+            if (i == keyStart || i + 1 >= end || buffer.get(i) != '=' || buffer.get(i + 1) != '\'') {
+                return -1;
+            }
+            int valueEnd = findValueEnd(buffer, i + 2, end);
+            if (valueEnd < 0) {
+                return -1;
+            }
+            message.addAttribute(keyStart, i, i + 2, valueEnd);
+            i = valueEnd + 1;
+        }
+    }
+
+    /**
+     * @return position of the closing quote, every "|" escapes the next byte
+     */
+    private static int findValueEnd(MappedByteBuffer buffer, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '|') {
+                i++;
+            } else if (b == '\'') {
+                return i;
+            } else if (b == '\n') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(MappedByteBuffer buffer, int start, int end) {
+        int i = start;
+        while (i < end && buffer.get(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isNameByte(byte b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9' || b == '.' || b == '_' || b == '-'
+                || b == ':';
+    }
+}
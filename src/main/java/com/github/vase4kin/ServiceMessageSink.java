@@ -0,0 +1,145 @@
+package com.github.vase4kin;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes service messages to the logger, the built-in sink which is always first in the pipeline.
+ * <p>
+ * With a {@link PassedTestCoalescer} started and finished messages of passing tests are batched while the logger
+ * is slow, the number of coalesced messages is printed when the outermost suite finishes. With a
+ * {@link SuiteOutputBuffer} messages of the outermost suite are printed as one block when it finishes, failures
+ * print the buffer right away so they are seen live.
+ */
+class ServiceMessageSink implements EventSink {
+
+    private final Logger logger;
+    private final String flowId;
+    private final PassedTestCoalescer passedTestCoalescer;
+    private final SuiteOutputBuffer suiteOutputBuffer;
+
+    private int suiteDepth;
+    private List<String> pendingTestMessages;
+    private long reportedCoalescedMessagesCount;
+
+    /**
+     * @param passedTestCoalescer null to print every message as soon as it is published
+     * @param suiteOutputBuffer   null to print messages of suites as they come
+     */
+    ServiceMessageSink(Logger logger, String flowId, PassedTestCoalescer passedTestCoalescer,
+                       SuiteOutputBuffer suiteOutputBuffer) {
+        this.logger = logger;
+        this.flowId = flowId;
+        this.passedTestCoalescer = passedTestCoalescer;
+        this.suiteOutputBuffer = suiteOutputBuffer;
+    }
+
+    @Override
+    public void write(ListenerEvent event, EncodedMessage message) {
+        if (isCoalesced(event)) {
+            if (event.getType() == ListenerEvent.Type.TEST_STARTED) {
+                pendingTestMessages = new ArrayList<>(2);
+            }
+            pendingTestMessages.add(message.getText());
+            if (event.getType() == ListenerEvent.Type.TEST_FINISHED) {
+                passedTestCoalescer.add(pendingTestMessages.toArray(new String[pendingTestMessages.size()]));
+                pendingTestMessages = null;
+                if (passedTestCoalescer.isFull()) {
+                    flushCoalescedMessages();
+                }
+            }
+            return;
+        }
+        flushCoalescedMessages();
+        if (suiteOutputBuffer != null && event.getType() == ListenerEvent.Type.SUITE_STARTED && suiteDepth == 0) {
+            suiteOutputBuffer.start();
+        }
+        log(message.getText(), 1);
+        if (event.getType() == ListenerEvent.Type.SUITE_STARTED) {
+            suiteDepth++;
+        } else if (event.getType() == ListenerEvent.Type.SUITE_FINISHED && --suiteDepth == 0) {
+            printCoalescedMessagesCount();
+            printSuiteOutput();
+            if (suiteOutputBuffer != null) {
+                suiteOutputBuffer.release();
+            }
+        } else if (event.getType() == ListenerEvent.Type.TEST_FAILED
+                || event.getType() == ListenerEvent.Type.BUILD_PROBLEM) {
+            printSuiteOutput();
+        }
+    }
+
+    /**
+     * A passing test is coalesced as a whole, the pressure can't change between its started and finished messages
+     * because nothing is logged in between
+     */
+    private boolean isCoalesced(ListenerEvent event) {
+        if (passedTestCoalescer == null || event.getStatus() != ListenerEvent.Status.PASSED) {
+            return false;
+        }
+        if (event.getType() == ListenerEvent.Type.TEST_STARTED) {
+            return passedTestCoalescer.isUnderPressure();
+        }
+        return pendingTestMessages != null && event.getType().isTestEvent();
+    }
+
+    /**
+     * @param lines number of service messages in the message
+     */
+    private void log(String message, int lines) {
+        if (suiteOutputBuffer != null && suiteOutputBuffer.isBuffering()) {
+            if (suiteOutputBuffer.append(message, lines)) {
+                return;
+            }
+            printSuiteOutput();
+            suiteOutputBuffer.stream();
+        }
+        print(message, lines);
+    }
+
+    private void print(String message, int lines) {
+        if (passedTestCoalescer == null) {
+            logger.info(message);
+        } else {
+            long startTime = System.nanoTime();
+            logger.info(message);
+            passedTestCoalescer.recordLatency(System.nanoTime() - startTime, lines);
+        }
+    }
+
+    /**
+     * Prints buffered messages of the suite as one block
+     */
+    private void printSuiteOutput() {
+        if (suiteOutputBuffer != null && suiteOutputBuffer.isBuffering() && !suiteOutputBuffer.isEmpty()) {
+            int lines = suiteOutputBuffer.getLines();
+            print(suiteOutputBuffer.drain(), lines);
+        }
+    }
+
+    private void flushCoalescedMessages() {
+        if (passedTestCoalescer != null && !passedTestCoalescer.isEmpty()) {
+            int lines = passedTestCoalescer.getLines();
+            log(passedTestCoalescer.drain(), lines);
+        }
+    }
+
+    private void printCoalescedMessagesCount() {
+        if (passedTestCoalescer != null) {
+            long count = passedTestCoalescer.getCoalescedMessagesCount();
+            if (count > reportedCoalescedMessagesCount) {
+                Map<String, String> properties = new HashMap<>();
+                properties.put("text", String.format("%d passing test messages were coalesced", count - reportedCoalescedMessagesCount));
+                if (flowId != null) {
+                    properties.put("flowId", flowId);
+                }
+                log(ServiceMessageEncoder.format(ListenerEvent.Type.MESSAGE.getMessageName(), properties), 1);
+                reportedCoalescedMessagesCount = count;
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.github.vase4kin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Tracks the step tree of the running test and prints steps as TeamCity blocks.
+ * <p>
+ * Steps deeper than the max depth are never printed. Without a min duration blocks are opened and closed live.
+ * With a min duration the decision is taken when a step closes: a failed step or a step which took at least
+ * the min duration is printed together with its printed children, children of a dropped step are moved to its parent.
+ * Blocks are printed once the top level step closes, so they stay properly nested.
+ * Not thread safe, every listener has its own tracker.
+ */
+class StepBlockTracker {
+
+    interface Printer {
+
+        void printBlockOpened(String name, String description);
+
+        void printBlockClosed(String name);
+    }
+
+    private final int maxDepth;
+    private final long minDurationNanos;
+    private final Printer printer;
+
+    private final Deque<Step> steps = new ArrayDeque<>();
+
+    /**
+     * @param minDurationMillis 0 to print every step live
+     */
+    StepBlockTracker(int maxDepth, long minDurationMillis, Printer printer) {
+        this.maxDepth = maxDepth;
+        this.minDurationNanos = minDurationMillis * 1000000;
+        this.printer = printer;
+    }
+
+    void stepStarted(String name) {
+        Step step = new Step(name, steps.size() + 1);
+        steps.push(step);
+        if (isLive() && step.isPrintable()) {
+            printer.printBlockOpened(name, null);
+        }
+    }
+
+    void stepFinished(boolean failed) {
+        Step step = steps.poll();
+        if (step == null) {
+            return;
+        }
+        if (isLive()) {
+            if (step.isPrintable()) {
+                printer.printBlockClosed(step.name);
+            }
+            return;
+        }
+        long duration = System.nanoTime() - step.startTime;
+        List<Block> blocks;
+        if (step.isPrintable() && (failed || duration >= minDurationNanos)) {
+            blocks = new ArrayList<>(step.children.size() + 2);
+            blocks.add(new Block(step.name, String.format("%d ms", duration / 1000000), true));
+            blocks.addAll(step.children);
+            blocks.add(new Block(step.name, null, false));
+        } else {
+            blocks = step.children;
+        }
+        Step parent = steps.peek();
+        if (parent != null) {
+            parent.children.addAll(blocks);
+        } else {
+            print(blocks);
+        }
+    }
+
+    /**
+     * Closes steps which are still open when the test finishes
+     */
+    void reset() {
+        while (!steps.isEmpty()) {
+            stepFinished(false);
+        }
+    }
+
+    private boolean isLive() {
+        return minDurationNanos == 0;
+    }
+
+    private void print(List<Block> blocks) {
+        for (Block block : blocks) {
+            if (block.opened) {
+                printer.printBlockOpened(block.name, block.description);
+            } else {
+                printer.printBlockClosed(block.name);
+            }
+        }
+    }
+
+    private class Step {
+
+        private final String name;
+        private final int depth;
+        private final long startTime = System.nanoTime();
+        private final List<Block> children = new ArrayList<>();
+
+        private Step(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+
+        private boolean isPrintable() {
+            return depth <= maxDepth;
+        }
+    }
+
+    private static class Block {
+
+        private final String name;
+        private final String description;
+        private final boolean opened;
+
+        private Block(String name, String description, boolean opened) {
+            this.name = name;
+            this.description = description;
+            this.opened = opened;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.TestStep;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects durations of steps whose description matches the pattern, reported as test metadata so TeamCity
+ * can chart them across builds.
+ * <p>
+ * The pattern is compiled once and its matcher is reused. Durations of steps with the same description are summed,
+ * at most max entries are collected per test in the order of the step tree.
+ * Not thread safe, every listener has its own instance.
+ */
+class StepMetrics {
+
+    private final Matcher matcher;
+    private final int maxEntries;
+
+    StepMetrics(Pattern pattern, int maxEntries) {
+        this.matcher = pattern.matcher("");
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return null if no pattern is configured
+     */
+    static StepMetrics create() {
+        String pattern = System.getProperty("teamcity.steplistener.step.metrics.pattern");
+        return pattern != null
+                ? new StepMetrics(Pattern.compile(pattern), Integer.getInteger("teamcity.steplistener.step.metrics.max", 10))
+                : null;
+    }
+
+    /**
+     * @return step descriptions mapped to their total duration in milliseconds
+     */
+    Map<String, Long> collect(List<TestStep> testSteps) {
+        Map<String, Long> durations = new LinkedHashMap<>();
+        collect(testSteps, durations);
+        return durations;
+    }
+
+    private void collect(List<TestStep> testSteps, Map<String, Long> durations) {
+        for (TestStep testStep : testSteps) {
+            String description = testStep.getDescription();
+            if (description != null && matcher.reset(description).find()) {
+                Long duration = durations.get(description);
+                if (duration != null) {
+                    durations.put(description, duration + testStep.getDuration());
+                } else if (durations.size() < maxEntries) {
+                    durations.put(description, testStep.getDuration());
+                }
+            }
+            if (testStep.isAGroup()) {
+                collect(testStep.getChildren(), durations);
+            }
+        }
+    }
+}
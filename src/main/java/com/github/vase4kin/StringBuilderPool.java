@@ -0,0 +1,73 @@
+package com.github.vase4kin;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Small bounded pool of builders shared by all listeners.
+ * <p>
+ * Builders are kept in a fixed array of slots taken and returned with CAS, so the pool neither locks, which would
+ * pin virtual threads, nor allocates. There are no thread locals, thousands of virtual threads would hold a builder
+ * each. When all slots are taken a new builder is allocated and dropped after use, builders grown over the max
+ * capacity are dropped as well.
+ */
+final class StringBuilderPool {
+
+    private final AtomicReferenceArray<StringBuilder> slots;
+    private final int initialCapacity;
+    private final int maxCapacity;
+
+    StringBuilderPool(int size, int initialCapacity, int maxCapacity) {
+        this.slots = new AtomicReferenceArray<>(size);
+        this.initialCapacity = initialCapacity;
+        this.maxCapacity = maxCapacity;
+    }
+
+    /**
+     * @return empty builder which should be given back with {@link #release(StringBuilder)}
+     */
+    StringBuilder acquire() {
+        int size = slots.length();
+        int start = getStartSlot(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            if (slots.get(slot) != null) {
+                StringBuilder builder = slots.getAndSet(slot, null);
+                if (builder != null) {
+                    return builder;
+                }
+            }
+        }
+        return new StringBuilder(initialCapacity);
+    }
+
+    void release(StringBuilder builder) {
+        if (builder.capacity() > maxCapacity) {
+            return;
+        }
+        builder.setLength(0);
+        int size = slots.length();
+        int start = getStartSlot(size);
+        for (int i = 0; i < size; i++) {
+            int slot = (start + i) % size;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, builder)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops pooled builders, new ones are allocated on demand
+     */
+    void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    /**
+     * Threads start looking at different slots so they rarely race for the same one
+     */
+    private static int getStartSlot(int size) {
+        return (int) (Thread.currentThread().getId() % size);
+    }
+}
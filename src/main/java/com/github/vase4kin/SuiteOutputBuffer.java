@@ -0,0 +1,116 @@
+package com.github.vase4kin;
+
+/**
+ * Buffer of the messages of the outermost suite, so suites of parallel listeners are printed as whole blocks
+ * instead of interleaving line by line.
+ * <p>
+ * Builders are taken from a pool shared by all listeners and returned when the suite is printed. A suite whose
+ * messages don't fit into max chars is streamed from then on. Not thread safe, every sink has its own buffer.
+ */
+class SuiteOutputBuffer {
+
+    static final String ENABLED_PROPERTY = "teamcity.steplistener.suite.buffer";
+    static final String MAX_CHARS_PROPERTY = "teamcity.steplistener.suite.buffer.max.chars";
+
+    /**
+     * Builders don't grow much over max chars of the buffer, so their capacity is not limited by the pool
+     */
+    private static final StringBuilderPool POOL = new StringBuilderPool(Runtime.getRuntime().availableProcessors(),
+            8 * 1024, Integer.MAX_VALUE);
+
+    private final int maxChars;
+
+    private StringBuilder buffer;
+    private int lines;
+    private boolean streaming;
+
+    SuiteOutputBuffer(int maxChars) {
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * @return null if suites are not buffered
+     */
+    static SuiteOutputBuffer create() {
+        return Boolean.getBoolean(ENABLED_PROPERTY)
+                ? new SuiteOutputBuffer(Integer.getInteger(MAX_CHARS_PROPERTY, 1024 * 1024))
+                : null;
+    }
+
+    /**
+     * Starts buffering the outermost suite
+     */
+    void start() {
+        streaming = false;
+        lines = 0;
+        if (buffer == null) {
+            buffer = POOL.acquire();
+        }
+    }
+
+    boolean isBuffering() {
+        return buffer != null && !streaming;
+    }
+
+    /**
+     * @param lines number of service messages in the message
+     * @return false if the message doesn't fit, the buffer should be printed and the rest of the suite streamed
+     */
+    boolean append(String message, int lines) {
+        if (buffer.length() + message.length() + 1 > maxChars) {
+            return false;
+        }
+        if (buffer.length() > 0) {
+            buffer.append('\n');
+        }
+        buffer.append(message);
+        this.lines += lines;
+        return true;
+    }
+
+    boolean isEmpty() {
+        return buffer == null || buffer.length() == 0;
+    }
+
+    /**
+     * @return number of lines in the buffer
+     */
+    int getLines() {
+        return lines;
+    }
+
+    /**
+     * @return buffered messages separated with line breaks, the buffer is empty afterwards
+     */
+    String drain() {
+        String messages = buffer.toString();
+        buffer.setLength(0);
+        lines = 0;
+        return messages;
+    }
+
+    /**
+     * Streams the rest of the suite, the buffer must be drained before
+     */
+    void stream() {
+        streaming = true;
+        release();
+    }
+
+    /**
+     * Returns the buffer to the pool when the suite is printed, the buffer must be drained before
+     */
+    void release() {
+        if (buffer != null) {
+            POOL.release(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Drops pooled builders, new ones are allocated on demand
+     */
+    static void clearPool() {
+        POOL.clear();
+    }
+}
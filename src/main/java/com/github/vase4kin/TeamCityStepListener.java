@@ -5,147 +5,659 @@ import net.thucydides.core.model.stacktrace.FailureCause;
 import net.thucydides.core.steps.ExecutedStepDescription;
 import net.thucydides.core.steps.StepFailure;
 import net.thucydides.core.steps.StepListener;
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.*;
-
-import static ch.lambdaj.Lambda.on;
-import static ch.lambdaj.Lambda.sum;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class TeamCityStepListener implements StepListener {
 
-    private final String FLOW_ID = System.getProperty("teamcity.flowId");
-
-    private static final String MESSAGE_TEMPLATE = "##teamcity[%s %s]";
-    private static final String PROPERTY_TEMPLATE = " %s='%s'";
+    private final String FLOW_ID;
 
     private static final String EMPTY_STRING = "";
 
-    private static final HashMap<String, String> ESCAPE_CHARS = new LinkedHashMap<String, String>() {
-        {
-            put("\\|", "||");
-            put("\'", "|\'");
-            put("\n", "|n");
-            put("\r", "|r");
-            put("\\[", "|[");
-            put("\\]", "|]");
-            put("[", "|[");
-            put("]", "|]");
-        }
-    };
+    private static final int PARALLEL_EXAMPLES_BATCH_SIZE = 32;
+
+    private final int PARALLEL_EXAMPLES_THRESHOLD = Integer.getInteger("teamcity.steplistener.examples.parallel.threshold", 256);
+
+    private static final String DETAILS_SPILL_DIRECTORY_PROPERTY = "teamcity.steplistener.details.spill.directory";
+
+    private final Integer DETAILS_SPILL_THRESHOLD = Integer.getInteger("teamcity.steplistener.details.spill.threshold");
 
     private Logger logger;
 
-    private Stack<String> suiteStack = new Stack<>();
+    private EventPipeline eventPipeline;
+
+    private final FlightRecorderEvents flightRecorderEvents = FlightRecorderEvents.getInstance();
+    private long emittedBytes;
+    private long callbackEmittedBytes;
+    private Object testEvent;
+
+    private FailureDetailsSpiller failureDetailsSpiller;
+
+    private final HungTestWatchdog hungTestWatchdog = HungTestWatchdog.getInstance();
+    private HungTestWatchdog.Reporter hungTestReporter;
+    private Object inFlightTest;
+    /**
+     * Held while publishing if the watchdog is enabled, its thread publishes to the same pipeline
+     */
+    private final ReentrantLock pipelineLock = new ReentrantLock();
+
+    private final FailureClusters failureClusters;
+
+    private final ProgressReporter progressReporter = ProgressReporter.getInstance();
+
+    private final HeapPressureMonitor heapPressureMonitor;
+
+    private TestManifest testManifest = TestManifest.getInstance();
+    private boolean sheddingDetails;
+
+    private final boolean RESOURCE_USAGE_ENABLED = Boolean.getBoolean("teamcity.steplistener.resource.usage");
+    private ResourceUsage testStartResourceUsage;
+    private Deque<ResourceUsage> suiteResourceUsages = new ArrayDeque<>();
+
+    private final StepMetrics stepMetrics = StepMetrics.create();
+
+    private final StepBlockTracker stepBlockTracker = createStepBlockTracker();
+
+    /**
+     * Not a {@link Stack}, its synchronized methods pin virtual threads
+     */
+    private final Deque<String> suiteStack = new ArrayDeque<>();
+
+    private String currentTestSuiteName = EMPTY_STRING;
 
     private Integer examplesTestCount = 0;
     private HashMap<Integer, String> exampleTestNames = new HashMap<>();
 
     public TeamCityStepListener(Logger logger) {
+        this(logger, System.getProperty("teamcity.flowId"));
+    }
+
+    /**
+     * Constructor used by {@link java.util.ServiceLoader}, logger is resolved on the first message
+     */
+    public TeamCityStepListener() {
+        this(null, System.getProperty("teamcity.flowId"));
+    }
+
+    /**
+     * @param flowId null to print messages without a flow, listeners of parallel threads need distinct flows
+     */
+    TeamCityStepListener(Logger logger, String flowId) {
+        this(logger, flowId, FailureClusters.getInstance(), HeapPressureMonitor.getInstance());
+    }
+
+    /**
+     * @param failureClusters     null if failures are not clustered
+     * @param heapPressureMonitor null if failure details are rendered in full regardless of the heap usage
+     */
+    TeamCityStepListener(Logger logger, String flowId, FailureClusters failureClusters,
+                         HeapPressureMonitor heapPressureMonitor) {
         this.logger = logger;
+        this.FLOW_ID = flowId;
+        this.failureClusters = failureClusters;
+        this.heapPressureMonitor = heapPressureMonitor;
     }
 
-    private String currentTestSuiteName = EMPTY_STRING;
+    private StepBlockTracker createStepBlockTracker() {
+        Integer maxDepth = Integer.getInteger("teamcity.steplistener.steps.max.depth");
+        if (maxDepth == null) {
+            return null;
+        }
+        long minDurationMillis = Long.getLong("teamcity.steplistener.steps.min.duration.millis", 0L);
+        return new StepBlockTracker(maxDepth, minDurationMillis, new StepBlockTracker.Printer() {
+            @Override
+            public void printBlockOpened(String name, String description) {
+                Map<String, String> properties = getProperties(name);
+                if (description != null) {
+                    properties.put("description", description);
+                }
+                publish(ListenerEvent.Type.BLOCK_OPENED, properties);
+            }
 
-    public TeamCityStepListener() {
-        this(LoggerFactory.getLogger(TeamCityStepListener.class));
+            @Override
+            public void printBlockClosed(String name) {
+                publish(ListenerEvent.Type.BLOCK_CLOSED, getProperties(name));
+            }
+        });
+    }
+
+    private Logger getLogger() {
+        if (logger == null) {
+            logger = LoggerFactory.getLogger(TeamCityStepListener.class);
+        }
+        return logger;
     }
 
-    private String escapeProperty(String value) {
-        for (Map.Entry<String, String> escapeChar : ESCAPE_CHARS.entrySet()) {
-            value = value.replace(escapeChar.getKey(), escapeChar.getValue());
+    private EventPipeline getEventPipeline() {
+        if (eventPipeline == null) {
+            eventPipeline = EventPipeline.create(getLogger(), FLOW_ID);
         }
-        return value;
+        return eventPipeline;
+    }
+
+    private void publish(ListenerEvent.Type type, Map<String, String> properties) {
+        publish(type, properties, null, ListenerEvent.NO_EXAMPLE, 0, System.currentTimeMillis());
     }
 
-    private void printMessage(String messageName, Map<String, String> properties) {
-        StringBuilder propertiesBuilder = new StringBuilder();
+    /**
+     * @param timestamp time of the event in milliseconds since epoch, test events are published when the test is
+     *                  finished so their times come from the outcome
+     */
+    private void publish(ListenerEvent.Type type, Map<String, String> properties, ListenerEvent.Status status,
+                         int exampleIndex, long duration, long timestamp) {
         if (FLOW_ID != null) {
             properties.put("flowId", FLOW_ID);
         }
-        for (Map.Entry<String, String> property : properties.entrySet()) {
-            propertiesBuilder.append(
-                    String.format(
-                            PROPERTY_TEMPLATE,
-                            property.getKey(),
-                            escapeProperty(property.getValue())
-                    )
-            );
+        EncodedMessage message = publish(getEventPipeline(),
+                new ListenerEvent(type, timestamp, properties, status, exampleIndex, duration));
+        if (flightRecorderEvents != null && message != null) {
+            emittedBytes += message.getBytes().remaining();
         }
-        String message = String.format(MESSAGE_TEMPLATE, messageName, propertiesBuilder.toString());
-        logger.info(message);
     }
 
-    private void printMessage(String messageName, String description, Long duration) {
+    private EncodedMessage publish(EventPipeline pipeline, ListenerEvent event) {
+        if (hungTestWatchdog == null) {
+            return pipeline.publish(event);
+        }
+        pipelineLock.lock();
+        try {
+            return pipeline.publish(event);
+        } finally {
+            pipelineLock.unlock();
+        }
+    }
+
+    /**
+     * @return reporter which publishes messages of the watchdog thread through the pipeline of this listener
+     */
+    private HungTestWatchdog.Reporter getHungTestReporter() {
+        if (hungTestReporter == null) {
+            final EventPipeline pipeline = getEventPipeline();
+            hungTestReporter = new HungTestWatchdog.Reporter() {
+                @Override
+                public void report(ListenerEvent.Type type, Map<String, String> properties) {
+                    if (FLOW_ID != null) {
+                        properties.put("flowId", FLOW_ID);
+                    }
+                    publish(pipeline, new ListenerEvent(type, System.currentTimeMillis(), properties, null,
+                            ListenerEvent.NO_EXAMPLE, 0));
+                }
+            };
+        }
+        return hungTestReporter;
+    }
+
+    private Object beginCallback() {
+        if (flightRecorderEvents == null) {
+            return null;
+        }
+        callbackEmittedBytes = emittedBytes;
+        return flightRecorderEvents.beginCallback();
+    }
+
+    private void commitCallback(Object event, String callback) {
+        if (event != null) {
+            flightRecorderEvents.commitCallback(event, callback, emittedBytes - callbackEmittedBytes);
+        }
+    }
+
+    /**
+     * @return null if failure details are always printed in full
+     */
+    private FailureDetailsSpiller getFailureDetailsSpiller() {
+        if (failureDetailsSpiller == null && DETAILS_SPILL_THRESHOLD != null) {
+            File directory = new File(System.getProperty(DETAILS_SPILL_DIRECTORY_PROPERTY, FailureDetailsSpiller.ARTIFACTS_PATH));
+            failureDetailsSpiller = new FailureDetailsSpiller(directory, DETAILS_SPILL_THRESHOLD, getLogger());
+        }
+        return failureDetailsSpiller;
+    }
+
+    private Map<String, String> getProperties(String description) {
         Map<String, String> properties = new HashMap<>();
         properties.put("name", description);
+        return properties;
+    }
+
+    /**
+     * Publishes started, failed or ignored and finished events of a test, the test is started at the start time
+     * and the other events happen when it is finished
+     *
+     * @param startTime      start of the test in milliseconds since epoch
+     * @param failureMessage null to leave the message property out of the testFailed message
+     * @param testSteps      steps to report step metrics for
+     * @param resourceUsage  null if the usage is not reported for the test
+     */
+    private void publishTest(String name, int exampleIndex, long startTime, Long duration, ListenerEvent.Status status,
+                             String failureMessage, String failureDetails, List<TestStep> testSteps,
+                             ResourceUsage resourceUsage) {
+        long finishTime = startTime + duration;
+        publish(ListenerEvent.Type.TEST_STARTED, getProperties(name), status, exampleIndex, 0, startTime);
+        if (status.isFailed()) {
+            String detailsPath = spillFailureDetails(name, failureDetails);
+            Map<String, String> properties = getProperties(name);
+            if (failureMessage != null) {
+                properties.put("message", failureMessage);
+            }
+            properties.put("details", detailsPath != null
+                    ? getFailureDetailsSpiller().truncate(failureDetails, detailsPath)
+                    : failureDetails);
+            publish(ListenerEvent.Type.TEST_FAILED, properties, status, exampleIndex, 0, finishTime);
+            if (detailsPath != null) {
+                Map<String, String> metadata = new HashMap<>();
+                metadata.put("testName", name);
+                metadata.put("name", "Full failure details");
+                metadata.put("type", "artifact");
+                metadata.put("value", detailsPath);
+                publish(ListenerEvent.Type.TEST_METADATA, metadata, status, exampleIndex, 0, finishTime);
+            }
+        } else if (status == ListenerEvent.Status.IGNORED) {
+            publish(ListenerEvent.Type.TEST_IGNORED, getProperties(name), status, exampleIndex, 0, finishTime);
+        }
+        if (resourceUsage != null) {
+            publishResourceUsage(name, status, resourceUsage, finishTime);
+        }
+        if (stepMetrics != null) {
+            for (Map.Entry<String, Long> stepDuration : stepMetrics.collect(testSteps).entrySet()) {
+                publishNumberMetadata(name, exampleIndex, status, stepDuration.getKey(), stepDuration.getValue(),
+                        finishTime);
+            }
+        }
+        Map<String, String> properties = getProperties(name);
         properties.put("duration", duration.toString());
-        printMessage(messageName, properties);
+        publish(ListenerEvent.Type.TEST_FINISHED, properties, status, exampleIndex, duration, finishTime);
+        if (progressReporter != null) {
+            publishProgress(progressReporter.testFinished(status.isFailed(), System.nanoTime()));
+        }
     }
 
-    private void printMessage(String messageName, String description) {
-        Map<String, String> properties = new HashMap<>();
-        properties.put("name", description);
-        printMessage(messageName, properties);
+    /**
+     * @param progress null if it is not time to report the progress yet
+     */
+    private void publishProgress(String progress) {
+        if (progress != null) {
+            Map<String, String> properties = new HashMap<>();
+            properties.put("text", progress);
+            publish(ListenerEvent.Type.PROGRESS_MESSAGE, properties);
+        }
+    }
+
+    /**
+     * Keeps the number of tests for the ETA of the next run, called when the outermost suite finishes
+     */
+    private void saveProgress() {
+        if (progressReporter != null) {
+            try {
+                progressReporter.save();
+            } catch (IOException e) {
+                getLogger().warn("Number of tests is not saved to " + progressReporter.getFile(), e);
+            }
+        }
+    }
+
+    private void publishResourceUsage(String name, ListenerEvent.Status status, ResourceUsage resourceUsage,
+                                      long timestamp) {
+        if (resourceUsage.getCpuTimeNanos() != ResourceUsage.UNAVAILABLE) {
+            publishNumberMetadata(name, ListenerEvent.NO_EXAMPLE, status, "CPU time, ms", resourceUsage.getCpuTimeNanos() / 1000000, timestamp);
+        }
+        if (resourceUsage.getAllocatedBytes() != ResourceUsage.UNAVAILABLE) {
+            publishNumberMetadata(name, ListenerEvent.NO_EXAMPLE, status, "Allocated, bytes", resourceUsage.getAllocatedBytes(), timestamp);
+        }
+        publishNumberMetadata(name, ListenerEvent.NO_EXAMPLE, status, "GC time, ms", resourceUsage.getGcTimeMillis(), timestamp);
+        publishNumberMetadata(name, ListenerEvent.NO_EXAMPLE, status, "GC count", resourceUsage.getGcCount(), timestamp);
+    }
+
+    private void publishNumberMetadata(String testName, int exampleIndex, ListenerEvent.Status status, String name,
+                                       long value, long timestamp) {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("testName", testName);
+        metadata.put("name", name);
+        metadata.put("type", "number");
+        metadata.put("value", String.valueOf(value));
+        publish(ListenerEvent.Type.TEST_METADATA, metadata, status, exampleIndex, 0, timestamp);
+    }
+
+    /**
+     * @return artifact path of the full details, null if they are printed in full
+     */
+    private String spillFailureDetails(String name, String failureDetails) {
+        FailureDetailsSpiller spiller = getFailureDetailsSpiller();
+        if (spiller == null || !spiller.isOverThreshold(failureDetails)) {
+            return null;
+        }
+        try {
+            return spiller.spill(name, failureDetails);
+        } catch (IOException e) {
+            getLogger().warn("Failure details are printed in full, can't write to "
+                    + System.getProperty(DETAILS_SPILL_DIRECTORY_PROPERTY, FailureDetailsSpiller.ARTIFACTS_PATH), e);
+            return null;
+        }
+    }
+
+    /**
+     * Publishes spilled failure details once they are written, called when the outermost suite finishes
+     */
+    private void publishFailureDetailsArtifacts() {
+        if (failureDetailsSpiller != null) {
+            for (File file : failureDetailsSpiller.awaitWrittenFiles()) {
+                Map<String, String> properties = new HashMap<>();
+                properties.put("path", file.getAbsolutePath() + " => " + FailureDetailsSpiller.ARTIFACTS_PATH);
+                publish(ListenerEvent.Type.PUBLISH_ARTIFACTS, properties);
+            }
+        }
+    }
+
+    /**
+     * Counts the failure in its cluster, the cause is looked up in the steps if the outcome has none
+     *
+     * @return null if failures are not clustered or the cause is unknown
+     */
+    private FailureClusters.Failure addFailure(FailureCause failureCause, List<TestStep> testSteps) {
+        if (failureClusters == null) {
+            return null;
+        }
+        FailureCause cause = failureCause != null ? failureCause : findFailureCause(testSteps);
+        return cause != null
+                ? failureClusters.add(cause.getErrorType(), cause.getMessage(), cause.getStackTrace())
+                : null;
+    }
+
+    private FailureCause findFailureCause(List<TestStep> testSteps) {
+        for (TestStep testStep : testSteps) {
+            if (testStep.isFailure() || testStep.isError()) {
+                if (testStep.getException() != null) {
+                    return testStep.getException();
+                }
+                FailureCause cause = findFailureCause(testStep.getChildren());
+                if (cause != null) {
+                    return cause;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return full failure details, a reference to the failure cluster if the cluster is tripped or a summary
+     * while the heap is nearly full
+     */
+    private String getFailureDetails(String title, List<TestStep> testSteps, FailureClusters.Failure failure) {
+        if (failure != null && failure.isShortened()) {
+            return failure.getShortDetails();
+        }
+        return sheddingDetails ? getFailureSummary(testSteps) : renderFailureDetails(title, testSteps);
+    }
+
+    /**
+     * Summary of the failure which doesn't render the step tree: step counts, the failed step and the first line
+     * of its error
+     */
+    private String getFailureSummary(List<TestStep> testSteps) {
+        StepCounts counts = new StepCounts();
+        counts.add(testSteps);
+        StringBuilder builder = new StringBuilder(String.format(
+                "Steps are not rendered under heap pressure, %d steps: %d passed, %d failed, %d skipped or pending\r\n",
+                counts.passed + counts.failed + counts.other, counts.passed, counts.failed, counts.other));
+        TestStep failedStep = findFailedStep(testSteps);
+        if (failedStep != null) {
+            builder.append("Failed step: ").append(failedStep.getDescription()).append("\r\n");
+            FailureCause cause = failedStep.getException();
+            if (cause != null) {
+                builder.append(cause.getErrorType());
+                if (cause.getMessage() != null) {
+                    String message = cause.getMessage();
+                    int lineEnd = message.indexOf('\n');
+                    builder.append(": ").append(lineEnd >= 0 ? message.substring(0, lineEnd).trim() : message);
+                }
+                builder.append("\r\n");
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return innermost failed step, null if no step failed
+     */
+    private TestStep findFailedStep(List<TestStep> testSteps) {
+        for (TestStep testStep : testSteps) {
+            if (testStep.isFailure() || testStep.isError()) {
+                TestStep failedChild = testStep.isAGroup() ? findFailedStep(testStep.getChildren()) : null;
+                return failedChild != null ? failedChild : testStep;
+            }
+        }
+        return null;
+    }
+
+    private void publishBuildProblem(FailureClusters.Failure failure) {
+        if (failure != null && failure.isTripping()) {
+            Map<String, String> properties = new HashMap<>();
+            properties.put("description", failure.getBuildProblemDescription());
+            properties.put("identity", failure.getBuildProblemIdentity());
+            publish(ListenerEvent.Type.BUILD_PROBLEM, properties);
+        }
+    }
+
+    /**
+     * Prints tripped failure clusters if they changed since the last summary, called when the outermost suite
+     * finishes so the listener which finishes last prints the final counts
+     */
+    private void publishFailureClustersSummary() {
+        String summary = failureClusters != null ? failureClusters.getSummary() : null;
+        if (summary != null) {
+            Map<String, String> properties = new HashMap<>();
+            properties.put("text", summary);
+            properties.put("status", "WARNING");
+            publish(ListenerEvent.Type.MESSAGE, properties);
+        }
+    }
+
+    /**
+     * @param warning null if the heap pressure didn't change
+     */
+    private void publishHeapPressure(String warning) {
+        if (warning != null) {
+            Map<String, String> properties = new HashMap<>();
+            properties.put("text", warning);
+            properties.put("status", "WARNING");
+            publish(ListenerEvent.Type.MESSAGE, properties);
+        }
+    }
+
+    /**
+     * Records the scenario as a whole, rows of a data driven scenario can't be rerun one by one
+     */
+    private void recordInManifest(TestOutcome result) {
+        char status = result.isFailure() || result.isError()
+                ? TestManifest.FAILED
+                : result.isSkipped() || result.isPending() ? TestManifest.IGNORED : TestManifest.PASSED;
+        try {
+            testManifest.record(status, getResultTitle(result), getTestSource(result), System.nanoTime());
+        } catch (IOException e) {
+            getLogger().warn("Test manifest is disabled", e);
+            testManifest = null;
+        }
+    }
+
+    /**
+     * @return class#method of a JUnit test or the path of the story, null if unknown
+     */
+    private String getTestSource(TestOutcome result) {
+        if (result.getTestCase() != null) {
+            return result.getTestCase().getName() + "#" + result.getMethodName();
+        }
+        return result.getUserStory() != null ? result.getUserStory().getPath() : null;
+    }
+
+    private void forceManifest() {
+        if (testManifest != null) {
+            try {
+                testManifest.force();
+            } catch (IOException e) {
+                getLogger().warn("Test manifest is disabled", e);
+                testManifest = null;
+            }
+        }
+    }
+
+    private void publishSuite(ListenerEvent.Type type, String name) {
+        publish(type, getProperties(name));
+    }
+
+    private void startSuiteResourceUsage() {
+        if (RESOURCE_USAGE_ENABLED) {
+            suiteResourceUsages.push(ResourceUsage.ZERO);
+        }
+    }
+
+    /**
+     * Prints the usage of the suite which includes its nested suites, the usage is added to the parent suite
+     */
+    private void finishSuiteResourceUsage() {
+        ResourceUsage suiteResourceUsage = suiteResourceUsages.poll();
+        if (suiteResourceUsage != null) {
+            Map<String, String> properties = new HashMap<>();
+            properties.put("text", String.format("Resource usage of %s: %s", suiteStack.peek(), suiteResourceUsage));
+            publish(ListenerEvent.Type.MESSAGE, properties);
+            addSuiteResourceUsage(suiteResourceUsage);
+        }
+    }
+
+    private void addSuiteResourceUsage(ResourceUsage resourceUsage) {
+        ResourceUsage suiteResourceUsage = suiteResourceUsages.poll();
+        if (suiteResourceUsage != null) {
+            suiteResourceUsages.push(suiteResourceUsage.plus(resourceUsage));
+        }
     }
 
     @Override
     public void testSuiteStarted(Class<?> storyClass) {
+        Object callbackEvent = beginCallback();
         String storyClassName = storyClass.getName();
         if (!currentTestSuiteName.equals(storyClassName)) {
             suiteStack.push(storyClassName);
-            printTestSuiteStarted(storyClassName);
+            publishSuite(ListenerEvent.Type.SUITE_STARTED, storyClassName);
+            startSuiteResourceUsage();
             currentTestSuiteName = storyClassName;
         }
+        commitCallback(callbackEvent, "testSuiteStarted");
     }
 
     @Override
     public void testSuiteStarted(Story story) {
+        Object callbackEvent = beginCallback();
         String storyName = story.getName();
         suiteStack.push(storyName);
-        printTestSuiteStarted(storyName);
+        publishSuite(ListenerEvent.Type.SUITE_STARTED, storyName);
+        startSuiteResourceUsage();
+        commitCallback(callbackEvent, "testSuiteStarted");
     }
 
     @Override
     public void testSuiteFinished() {
-        if (!suiteStack.empty()) {
-            String suiteName = suiteStack.pop();
-            printTestSuiteFinished(suiteName);
+        Object callbackEvent = beginCallback();
+        if (!suiteStack.isEmpty()) {
+            finishSuiteResourceUsage();
+            publishSuite(ListenerEvent.Type.SUITE_FINISHED, suiteStack.pop());
+            if (suiteStack.isEmpty()) {
+                publishFailureDetailsArtifacts();
+                publishFailureClustersSummary();
+                saveProgress();
+                forceManifest();
+            }
         }
+        commitCallback(callbackEvent, "testSuiteFinished");
     }
 
     @Override
     public void testStarted(String description) {
+        Object callbackEvent = beginCallback();
+        if (flightRecorderEvents != null) {
+            testEvent = flightRecorderEvents.beginTest();
+        }
+        if (RESOURCE_USAGE_ENABLED) {
+            testStartResourceUsage = ResourceUsage.snapshot();
+        }
+        if (hungTestWatchdog != null) {
+            hungTestWatchdog.testFinished(inFlightTest);
+            String name = suiteStack.isEmpty() ? description : suiteStack.peek() + "." + description;
+            inFlightTest = hungTestWatchdog.testStarted(name, getHungTestReporter());
+        }
+        commitCallback(callbackEvent, "testStarted");
     }
 
     @Override
     public void testFinished(TestOutcome result) {
+        Object callbackEvent = beginCallback();
+        ResourceUsage resourceUsage = null;
+        if (testStartResourceUsage != null) {
+            resourceUsage = ResourceUsage.snapshot().minus(testStartResourceUsage);
+            testStartResourceUsage = null;
+            addSuiteResourceUsage(resourceUsage);
+        }
+        if (hungTestWatchdog != null) {
+            hungTestWatchdog.testFinished(inFlightTest);
+            inFlightTest = null;
+        }
+        if (stepBlockTracker != null) {
+            stepBlockTracker.reset();
+        }
+        if (heapPressureMonitor != null) {
+            sheddingDetails = heapPressureMonitor.isUnderPressure(System.nanoTime());
+            publishHeapPressure(heapPressureMonitor.pollTransition());
+        }
         if (result.isDataDriven()) {
             printExampleResults(result);
         } else {
-            printTestStarted(result);
+            String title = getResultTitle(result);
+            long startTime = getStartTime(result);
             if (result.isFailure() || result.isError()) {
-                printFailure(result);
+                FailureClusters.Failure failure = addFailure(result.getTestFailureCause(), result.getTestSteps());
+                publishTest(title, ListenerEvent.NO_EXAMPLE, startTime, result.getDuration(),
+                        result.isError() ? ListenerEvent.Status.ERROR : ListenerEvent.Status.FAILED,
+                        getTestOutComeTestFailureCauseMessage(result.getTestFailureCause()),
+                        getFailureDetails(title, result.getTestSteps(), failure), result.getTestSteps(), resourceUsage);
+                publishBuildProblem(failure);
             } else if (result.isSkipped() || result.isPending()) {
-                printTestIgnored(result);
+                publishTest(title, ListenerEvent.NO_EXAMPLE, startTime, result.getDuration(), ListenerEvent.Status.IGNORED,
+                        null, null, result.getTestSteps(), resourceUsage);
+            } else {
+                publishTest(title, ListenerEvent.NO_EXAMPLE, startTime, result.getDuration(), ListenerEvent.Status.PASSED,
+                        null, null, result.getTestSteps(), resourceUsage);
             }
-            printTestFinished(result);
         }
+        if (testManifest != null) {
+            recordInManifest(result);
+        }
+        if (testEvent != null) {
+            flightRecorderEvents.commitTest(testEvent, getResultTitle(result), String.valueOf(result.getResult()));
+            testEvent = null;
+        }
+        commitCallback(callbackEvent, "testFinished");
     }
 
     @Override
     public void testRetried() {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "testRetried");
     }
 
-    private void printFailure(TestOutcome result) {
-        HashMap<String, String> properties = new HashMap<>();
-        properties.put("name", getResultTitle(result));
-        properties.put("message", getTestOutComeTestFailureCauseMessage(result.getTestFailureCause()));
-        properties.put("details", getStepsInfo(result.getTestSteps()));
-        printMessage("testFailed", properties);
+    /**
+     * @return start of the test in milliseconds since epoch, derived from the duration if the outcome has none
+     */
+    private long getStartTime(TestOutcome result) {
+        DateTime startTime = result.getStartTime();
+        return startTime != null ? startTime.getMillis() : System.currentTimeMillis() - result.getDuration();
     }
 
     private String getTestOutComeTestFailureCauseMessage(FailureCause failureCause) {
@@ -157,44 +669,222 @@ public class TeamCityStepListener implements StepListener {
     }
 
     private void printExampleResults(TestOutcome result) {
-        List<TestStep> testSteps = result.getTestSteps();
-        int number = 0;
-        for (int i = 0; i < testSteps.size(); i++) {
-            if (isExample(testSteps.get(i))) {
-                List<TestStep> childrenTestSteps = result.getTestSteps().get(i).getChildren();
-                String testName = getResultTitle(result, exampleTestNames.get(number));
-                Long duration = sum(childrenTestSteps, on(TestStep.class).getDuration());
-                printTestStarted(testName);
-                if (hasFailureStep(childrenTestSteps)) {
-                    String getStepsInfo = getStepsInfo(childrenTestSteps);
-                    HashMap<String, String> properties = new HashMap<>();
-                    properties.put("name", testName);
-                    properties.put("details", getStepsInfo);
-                    printMessage("testFailed", properties);
-                } else if (hasPendingStep(childrenTestSteps)) {
-                    printTestIgnored(testName);
-                }
-                printTestFinished(testName, duration);
-                number++;
+        List<List<TestStep>> examples = new ArrayList<>();
+        List<String> exampleNames = new ArrayList<>();
+        List<Long> exampleStartTimes = new ArrayList<>();
+        for (TestStep testStep : result.getTestSteps()) {
+            if (isExample(testStep)) {
+                exampleNames.add(exampleTestNames.get(examples.size()));
+                examples.add(testStep.getChildren());
+                exampleStartTimes.add(testStep.getStartTime());
             }
         }
+        List<FailureClusters.Failure> failures = addExampleFailures(examples);
+        // one row at a time while the heap is nearly full
+        int number = examples.size() >= PARALLEL_EXAMPLES_THRESHOLD && !sheddingDetails
+                ? publishExamplesInParallel(result, exampleNames, examples, exampleStartTimes, failures)
+                : 0;
+        for (; number < examples.size(); number++) {
+            ExampleResult exampleResult =
+                    renderExample(result, exampleNames.get(number), examples.get(number), failures.get(number));
+            publishExampleResult(exampleResult, number, exampleStartTimes.get(number), examples.get(number));
+        }
         examplesTestCount = 0;
         exampleTestNames.clear();
     }
 
+    /**
+     * @param startTime start of the row in milliseconds since epoch, 0 if unknown
+     */
+    private void publishExampleResult(ExampleResult exampleResult, int number, long startTime,
+                                      List<TestStep> testSteps) {
+        ListenerEvent.Status status = exampleResult.failureDetails != null
+                ? hasErrorStep(testSteps) ? ListenerEvent.Status.ERROR : ListenerEvent.Status.FAILED
+                : exampleResult.ignored ? ListenerEvent.Status.IGNORED : ListenerEvent.Status.PASSED;
+        publishTest(exampleResult.name, number,
+                startTime > 0 ? startTime : System.currentTimeMillis() - exampleResult.duration,
+                exampleResult.duration, status, null, exampleResult.failureDetails, testSteps, null);
+        publishBuildProblem(exampleResult.failure);
+    }
+
+    /**
+     * Counts failures of rows in their clusters on the test thread in row order, so the rows which are shortened
+     * don't depend on how rows are scheduled on the rendering pool
+     *
+     * @return failure of every row, null for rows which didn't fail or weren't clustered
+     */
+    private List<FailureClusters.Failure> addExampleFailures(List<List<TestStep>> examples) {
+        List<FailureClusters.Failure> failures = new ArrayList<>(examples.size());
+        for (List<TestStep> childrenTestSteps : examples) {
+            failures.add(hasFailureStep(childrenTestSteps) ? addFailure(null, childrenTestSteps) : null);
+        }
+        return failures;
+    }
+
+    /**
+     * Only builds the result of the row, called from rendering pool threads as well
+     *
+     * @param failure failure of the row in its cluster, null if it isn't clustered
+     */
+    private ExampleResult renderExample(TestOutcome result, String exampleName, List<TestStep> childrenTestSteps,
+                                        FailureClusters.Failure failure) {
+        String testName = getResultTitle(result, exampleName);
+        Long duration = getDuration(childrenTestSteps);
+        if (hasFailureStep(childrenTestSteps)) {
+            return new ExampleResult(testName, duration, getFailureDetails(testName, childrenTestSteps, failure),
+                    false, failure);
+        }
+        return new ExampleResult(testName, duration, null, hasPendingStep(childrenTestSteps), null);
+    }
+
+    /**
+     * Renders rows in batches on the shared rendering pool and publishes them in row order. Only a window of batches
+     * is in flight, so rendered details of a large failing table don't pile up on the heap
+     *
+     * @return number of published rows, less than all rows if the current thread is interrupted, the rest should be
+     * rendered sequentially then
+     */
+    private int publishExamplesInParallel(TestOutcome result, List<String> exampleNames,
+                                          List<List<TestStep>> examples, List<Long> exampleStartTimes,
+                                          List<FailureClusters.Failure> failures) {
+        int window = 2 * RenderingPoolHolder.POOL.getParallelism();
+        Deque<Future<List<ExampleResult>>> batches = new ArrayDeque<>(window);
+        int submitted = 0;
+        int published = 0;
+        try {
+            while (published < examples.size()) {
+                while (batches.size() < window && submitted < examples.size()) {
+                    int batchTo = Math.min(submitted + PARALLEL_EXAMPLES_BATCH_SIZE, examples.size());
+                    batches.add(RenderingPoolHolder.POOL.submit(
+                            renderBatch(result, exampleNames, examples, failures, submitted, batchTo)));
+                    submitted = batchTo;
+                }
+                for (ExampleResult exampleResult : batches.peek().get()) {
+                    publishExampleResult(exampleResult, published, exampleStartTimes.get(published),
+                            examples.get(published));
+                    published++;
+                }
+                batches.poll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            for (Future<List<ExampleResult>> batch : batches) {
+                batch.cancel(false);
+            }
+        }
+        return published;
+    }
+
+    private Callable<List<ExampleResult>> renderBatch(final TestOutcome result, final List<String> exampleNames,
+                                                      final List<List<TestStep>> examples,
+                                                      final List<FailureClusters.Failure> failures,
+                                                      final int from, final int to) {
+        return new Callable<List<ExampleResult>>() {
+            @Override
+            public List<ExampleResult> call() {
+                List<ExampleResult> batch = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    batch.add(renderExample(result, exampleNames.get(i), examples.get(i), failures.get(i)));
+                }
+                return batch;
+            }
+        };
+    }
+
+    private Long getDuration(List<TestStep> testSteps) {
+        long duration = 0;
+        for (TestStep testStep : testSteps) {
+            duration += testStep.getDuration();
+        }
+        return duration;
+    }
+
     private boolean isExample(TestStep testStep) {
         return testStep.isAGroup() && testStep.getDescription().startsWith("[");
     }
 
+    /**
+     * Renders failure details inside a flight recorder span, called from rendering pool threads as well
+     */
+    private String renderFailureDetails(String title, List<TestStep> testSteps) {
+        Object event = flightRecorderEvents != null ? flightRecorderEvents.beginDetailsRendering() : null;
+        String details = getStepsInfo(testSteps);
+        if (event != null) {
+            flightRecorderEvents.commitDetailsRendering(event, title, details.length());
+        }
+        return details;
+    }
+
+    /**
+     * Consecutive steps with the same description and result, e.g. polling steps, are collapsed into one line
+     * with the number of repeats and their total duration. Result messages with stack traces are only compared for
+     * failed steps with the same description
+     */
     private String getStepsInfo(List<TestStep> testSteps) {
         StringBuilder builder = new StringBuilder("Steps:\r\n");
+        TestStep first = null;
+        String resultMessage = null;
+        int repeats = 0;
+        long duration = 0;
         for (TestStep testStep : testSteps) {
-            String stepMessage = String.format("%s (%s) -> %s\r\n", testStep.getDescription(), testStep.getDurationInSeconds(), getResultMessage(testStep));
-            builder.append(stepMessage);
+            if (repeats > 0 && testStep.getDescription().equals(first.getDescription())
+                    && testStep.getResult() == first.getResult()) {
+                String stepResultMessage = null;
+                if (testStep.isFailure() || testStep.isError()) {
+                    if (resultMessage == null) {
+                        resultMessage = getResultMessage(first);
+                    }
+                    stepResultMessage = getResultMessage(testStep);
+                }
+                if (stepResultMessage == null || stepResultMessage.equals(resultMessage)) {
+                    repeats++;
+                    duration += testStep.getDuration();
+                    continue;
+                }
+                appendStep(builder, first, repeats, duration, resultMessage);
+                first = testStep;
+                resultMessage = stepResultMessage;
+            } else {
+                appendStep(builder, first, repeats, duration, resultMessage);
+                first = testStep;
+                resultMessage = null;
+            }
+            repeats = 1;
+            duration = testStep.getDuration();
         }
+        appendStep(builder, first, repeats, duration, resultMessage);
         return builder.toString();
     }
 
+    /**
+     * @param resultMessage null if it isn't rendered yet
+     */
+    private void appendStep(StringBuilder builder, TestStep first, int repeats, long duration, String resultMessage) {
+        if (repeats == 0) {
+            return;
+        }
+        if (resultMessage == null) {
+            resultMessage = getResultMessage(first);
+        }
+        if (repeats == 1) {
+            builder.append(String.format("%s (%s) -> %s\r\n", first.getDescription(), first.getDurationInSeconds(),
+                    resultMessage));
+        } else {
+            builder.append(String.format("%s x%d (%s) -> %s\r\n", first.getDescription(), repeats, duration / 1000.0,
+                    resultMessage));
+        }
+    }
+
     private Boolean hasFailureStep(List<TestStep> testSteps) {
         for (TestStep testStep : testSteps) {
             if (testStep.isError() || testStep.isFailure()) {
@@ -204,6 +894,15 @@ public class TeamCityStepListener implements StepListener {
         return false;
     }
 
+    private boolean hasErrorStep(List<TestStep> testSteps) {
+        for (TestStep testStep : testSteps) {
+            if (testStep.isError()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private Boolean hasPendingStep(List<TestStep> testSteps) {
         for (TestStep testStep : testSteps) {
             if (testStep.isSkipped() || testStep.isPending() || testStep.isIgnored()) {
@@ -257,109 +956,184 @@ public class TeamCityStepListener implements StepListener {
         return title;
     }
 
-    private void printTestStarted(String name) {
-        printMessage("testStarted", name);
-    }
-
-    private void printTestStarted(TestOutcome result) {
-        printMessage("testStarted", getResultTitle(result));
-    }
-
-    private void printTestIgnored(TestOutcome result) {
-        printMessage("testIgnored", getResultTitle(result));
-    }
-
-    private void printTestIgnored(String name) {
-        printMessage("testIgnored", name);
-    }
-
-    private void printTestFinished(TestOutcome result) {
-        printMessage("testFinished", getResultTitle(result), result.getDuration());
-    }
-
-    private void printTestFinished(String name, Long duration) {
-        printMessage("testFinished", name, duration);
-    }
-
-    private void printTestSuiteFinished(String name) {
-        printMessage("testSuiteFinished", name);
-    }
-
-    private void printTestSuiteStarted(String name) {
-        printMessage("testSuiteStarted", name);
-    }
-
     @Override
     public void testFailed(TestOutcome testOutcome, Throwable cause) {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "testFailed");
     }
 
     @Override
     public void testIgnored() {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "testIgnored");
     }
 
     @Override
     public void testSkipped() {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "testSkipped");
     }
 
     @Override
     public void testPending() {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "testPending");
     }
 
     @Override
     public void stepStarted(ExecutedStepDescription description) {
+        Object callbackEvent = beginCallback();
+        startStep(description);
+        commitCallback(callbackEvent, "stepStarted");
     }
 
     @Override
     public void skippedStepStarted(ExecutedStepDescription description) {
+        Object callbackEvent = beginCallback();
+        startStep(description);
+        commitCallback(callbackEvent, "skippedStepStarted");
     }
 
     @Override
     public void stepFailed(StepFailure failure) {
+        Object callbackEvent = beginCallback();
+        finishStep(true);
+        commitCallback(callbackEvent, "stepFailed");
     }
 
     @Override
     public void lastStepFailed(StepFailure failure) {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "lastStepFailed");
     }
 
     @Override
     public void stepIgnored() {
+        Object callbackEvent = beginCallback();
+        finishStep(false);
+        commitCallback(callbackEvent, "stepIgnored");
     }
 
     @Override
     public void stepPending() {
+        Object callbackEvent = beginCallback();
+        finishStep(false);
+        commitCallback(callbackEvent, "stepPending");
     }
 
     @Override
     public void stepPending(String message) {
+        Object callbackEvent = beginCallback();
+        finishStep(false);
+        commitCallback(callbackEvent, "stepPending");
     }
 
     @Override
     public void stepFinished() {
+        Object callbackEvent = beginCallback();
+        finishStep(false);
+        commitCallback(callbackEvent, "stepFinished");
+    }
+
+    private void startStep(ExecutedStepDescription description) {
+        if (stepBlockTracker != null) {
+            stepBlockTracker.stepStarted(description.getTitle());
+        }
+    }
+
+    private void finishStep(boolean failed) {
+        if (stepBlockTracker != null) {
+            stepBlockTracker.stepFinished(failed);
+        }
     }
 
     @Override
     public void notifyScreenChange() {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "notifyScreenChange");
     }
 
     @Override
     public void useExamplesFrom(DataTable table) {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "useExamplesFrom");
     }
 
     @Override
     public void addNewExamplesFrom(DataTable dataTable) {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "addNewExamplesFrom");
     }
 
     @Override
     public void exampleStarted(Map<String, String> data) {
+        Object callbackEvent = beginCallback();
         exampleTestNames.put(examplesTestCount, data.toString());
         examplesTestCount++;
+        commitCallback(callbackEvent, "exampleStarted");
     }
 
     @Override
     public void exampleFinished() {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "exampleFinished");
     }
 
     @Override
     public void assumptionViolated(String message) {
+        Object callbackEvent = beginCallback();
+        commitCallback(callbackEvent, "assumptionViolated");
+    }
+
+    /**
+     * Rendering pool shared by all listeners, created on the first large data driven scenario
+     */
+    private static class RenderingPoolHolder {
+
+        private static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger(
+                "teamcity.steplistener.examples.parallelism",
+                Math.min(4, Runtime.getRuntime().availableProcessors())));
+    }
+
+    /**
+     * Numbers of leaf steps by result
+     */
+    private static class StepCounts {
+
+        private int passed;
+        private int failed;
+        private int other;
+
+        private void add(List<TestStep> testSteps) {
+            for (TestStep testStep : testSteps) {
+                if (testStep.isAGroup()) {
+                    add(testStep.getChildren());
+                } else if (testStep.isFailure() || testStep.isError()) {
+                    failed++;
+                } else if (testStep.isSuccessful()) {
+                    passed++;
+                } else {
+                    other++;
+                }
+            }
+        }
+    }
+
+    private static class ExampleResult {
+
+        private final String name;
+        private final Long duration;
+        private final String failureDetails;
+        private final boolean ignored;
+        private final FailureClusters.Failure failure;
+
+        private ExampleResult(String name, Long duration, String failureDetails, boolean ignored,
+                              FailureClusters.Failure failure) {
+            this.name = name;
+            this.duration = duration;
+            this.failureDetails = failureDetails;
+            this.ignored = ignored;
+            this.failure = failure;
+        }
     }
 }
@@ -0,0 +1,126 @@
+package com.github.vase4kin;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Text manifest of finished tests shared by all listeners, read back by {@link TestManifestFilter}.
+ * <p>
+ * Every test is one appended line {@code status TAB name TAB source}: status is {@code P}, {@code F} or {@code I},
+ * name is the TeamCity test name and source is {@code class#method} of a JUnit test or the path of a story.
+ * The file is opened for appending, so a line is written in one go without a lock and a rerun appends to the
+ * manifest of the run it repeats. It is forced to disk at most once per interval and when an outermost suite
+ * finishes, a crash loses the tests of the last interval and can leave a partial last line. The partial line is
+ * terminated when the manifest is opened again, so it is ignored on its own instead of swallowing the next line.
+ */
+class TestManifest {
+
+    static final String FILE_PROPERTY = "teamcity.steplistener.manifest.file";
+    static final String FSYNC_INTERVAL_PROPERTY = "teamcity.steplistener.manifest.fsync.millis";
+
+    static final char PASSED = 'P';
+    static final char FAILED = 'F';
+    static final char IGNORED = 'I';
+
+    private final FileChannel channel;
+    private final long fsyncIntervalNanos;
+
+    private final AtomicLong nextForceTime;
+
+    TestManifest(File file, long fsyncIntervalNanos) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        try {
+            if (endsWithPartialLine(file)) {
+                write(ByteBuffer.wrap(new byte[]{'\n'}));
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.fsyncIntervalNanos = fsyncIntervalNanos;
+        this.nextForceTime = new AtomicLong(System.nanoTime() + fsyncIntervalNanos);
+    }
+
+    /**
+     * @return manifest shared by all listeners, null if it is not enabled or the file can't be opened
+     */
+    static TestManifest getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    private static TestManifest create() {
+        String path = System.getProperty(FILE_PROPERTY);
+        if (path == null) {
+            return null;
+        }
+        File file = new File(path);
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create directory " + directory);
+            }
+            return new TestManifest(file, TimeUnit.MILLISECONDS.toNanos(Long.getLong(FSYNC_INTERVAL_PROPERTY, 1000L)));
+        } catch (IOException e) {
+            LoggerFactory.getLogger(TestManifest.class).warn("Test manifest is disabled, can't write to " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Appends the test, the file is forced if the interval is over
+     *
+     * @param source null if unknown
+     */
+    void record(char status, String name, String source, long now) throws IOException {
+        String line = status + "\t" + clean(name) + "\t" + (source != null ? clean(source) : "") + "\n";
+        write(ByteBuffer.wrap(line.getBytes(EventJournal.UTF_8)));
+        long forceTime = nextForceTime.get();
+        if (now >= forceTime && nextForceTime.compareAndSet(forceTime, now + fsyncIntervalNanos)) {
+            channel.force(false);
+        }
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    private void write(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * @return true if a previous run crashed in the middle of the last line
+     */
+    private static boolean endsWithPartialLine(File file) throws IOException {
+        try (FileChannel reader = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = reader.size();
+            if (size == 0) {
+                return false;
+            }
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            return reader.read(lastByte, size - 1) == 1 && lastByte.get(0) != '\n';
+        }
+    }
+
+    /**
+     * Tabs and line breaks would break the line format
+     */
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    private static class InstanceHolder {
+
+        private static final TestManifest INSTANCE = create();
+    }
+}
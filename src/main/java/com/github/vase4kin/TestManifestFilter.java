@@ -0,0 +1,127 @@
+package com.github.vase4kin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Turns a manifest written with {@code teamcity.steplistener.manifest.file} into a list of tests for the next build:
+ * <pre>
+ * java -cp serenity-teamcity-steplistener.jar com.github.vase4kin.TestManifestFilter manifest failed|completed [names|tests|stories]
+ * </pre>
+ * {@code failed} lists tests whose last result is a failure, to rerun them. {@code completed} lists every finished
+ * test, to exclude them when a crashed run is resumed. Formats:
+ * <ul>
+ * <li>{@code names} - TeamCity test names, one per line, the default</li>
+ * <li>{@code tests} - JUnit tests for {@code -Dtest=}, {@code Class#method} separated with commas, completed tests
+ * are excluded with {@code !}</li>
+ * <li>{@code stories} - paths of stories with failed scenarios, one per line, only for {@code failed} because
+ * a story interrupted by a crash has completed scenarios as well</li>
+ * </ul>
+ */
+public final class TestManifestFilter {
+
+    private TestManifestFilter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3 || !"failed".equals(args[1]) && !"completed".equals(args[1])) {
+            usage();
+            return;
+        }
+        boolean failed = "failed".equals(args[1]);
+        String format = args.length == 3 ? args[2] : "names";
+        if (!"names".equals(format) && !"tests".equals(format) && !("stories".equals(format) && failed)) {
+            usage();
+            return;
+        }
+        for (String line : select(read(new File(args[0])).values(), failed, format)) {
+            System.out.println(line);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: TestManifestFilter manifest failed|completed [names|tests|stories]");
+        System.exit(2);
+    }
+
+    /**
+     * @return tests by name with their last result in the order they were first finished
+     */
+    static Map<String, Entry> read(File file) throws IOException {
+        String text = new String(Files.readAllBytes(file.toPath()), EventJournal.UTF_8);
+        Map<String, Entry> entries = new LinkedHashMap<>();
+        int start = 0;
+        int end;
+        // a line without a line break is a partial write of a crashed run
+        while ((end = text.indexOf('\n', start)) >= 0) {
+            Entry entry = Entry.parse(text.substring(start, end));
+            if (entry != null) {
+                entries.put(entry.name, entry);
+            }
+            start = end + 1;
+        }
+        return entries;
+    }
+
+    /**
+     * @param failed true to select failed tests, false to select all completed ones
+     * @return lines to print
+     */
+    static List<String> select(Collection<Entry> entries, boolean failed, String format) {
+        Set<String> selected = new LinkedHashSet<>();
+        for (Entry entry : entries) {
+            if (failed && entry.status != TestManifest.FAILED) {
+                continue;
+            }
+            if ("names".equals(format)) {
+                selected.add(entry.name);
+            } else if ("tests".equals(format) && entry.isJUnitTest()) {
+                selected.add(failed ? entry.source : "!" + entry.source);
+            } else if ("stories".equals(format) && !entry.source.isEmpty() && !entry.isJUnitTest()) {
+                selected.add(entry.source);
+            }
+        }
+        if ("tests".equals(format)) {
+            StringBuilder builder = new StringBuilder();
+            for (String test : selected) {
+                builder.append(builder.length() > 0 ? "," : "").append(test);
+            }
+            return builder.length() > 0 ? Collections.singletonList(builder.toString()) : Collections.<String>emptyList();
+        }
+        return new ArrayList<>(selected);
+    }
+
+    static final class Entry {
+
+        private final char status;
+        private final String name;
+        private final String source;
+
+        Entry(char status, String name, String source) {
+            this.status = status;
+            this.name = name;
+            this.source = source;
+        }
+
+        /**
+         * @return null if the line is malformed
+         */
+        private static Entry parse(String line) {
+            String[] columns = line.split("\t", -1);
+            if (columns.length != 3 || columns[0].length() != 1 || columns[1].isEmpty()) {
+                return null;
+            }
+            return new Entry(columns[0].charAt(0), columns[1], columns[2]);
+        }
+
+        char getStatus() {
+            return status;
+        }
+
+        private boolean isJUnitTest() {
+            return source.indexOf('#') > 0;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.vase4kin;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Formats event times as TeamCity timestamps, {@code yyyy-MM-dd'T'HH:mm:ss.SSSZ}, without allocating.
+ * <p>
+ * The text up to the minutes and the zone offset are cached for the current minute, every call only appends the
+ * seconds and milliseconds digits. The cache is an immutable snapshot replaced when a time of another minute comes,
+ * so the formatter is shared by all listeners without a lock, unlike {@code SimpleDateFormat}.
+ */
+final class TimestampFormatter {
+
+    static final String ENABLED_PROPERTY = "teamcity.steplistener.timestamps";
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+
+    private final TimeZone timeZone;
+
+    private volatile Minute minute;
+
+    TimestampFormatter(TimeZone timeZone) {
+        this.timeZone = timeZone;
+        this.minute = new Minute(Long.MIN_VALUE, "", "");
+    }
+
+    /**
+     * @return formatter in the default time zone shared by all listeners, null if timestamps are not enabled
+     */
+    static TimestampFormatter getInstance() {
+        return Boolean.getBoolean(ENABLED_PROPERTY) ? InstanceHolder.INSTANCE : null;
+    }
+
+    void append(StringBuilder builder, long millis) {
+        Minute minute = this.minute;
+        if (millis < minute.start || millis >= minute.start + MINUTE_MILLIS) {
+            minute = createMinute(millis);
+            this.minute = minute;
+        }
+        int millisOfMinute = (int) (millis - minute.start);
+        int seconds = millisOfMinute / 1000;
+        int millisOfSecond = millisOfMinute % 1000;
+        builder.append(minute.prefix)
+                .append((char) ('0' + seconds / 10))
+                .append((char) ('0' + seconds % 10))
+                .append('.')
+                .append((char) ('0' + millisOfSecond / 100))
+                .append((char) ('0' + millisOfSecond / 10 % 10))
+                .append((char) ('0' + millisOfSecond % 10))
+                .append(minute.zone);
+    }
+
+    String format(long millis) {
+        StringBuilder builder = new StringBuilder(28);
+        append(builder, millis);
+        return builder.toString();
+    }
+
+    /**
+     * The minute is computed from the offset, setting fields of a calendar would pick the wrong one of two equal
+     * local times when clocks go back
+     */
+    private Minute createMinute(long millis) {
+        int offset = timeZone.getOffset(millis);
+        long millisOfMinute = (millis + offset) % MINUTE_MILLIS;
+        if (millisOfMinute < 0) {
+            millisOfMinute += MINUTE_MILLIS;
+        }
+        long start = millis - millisOfMinute;
+        Calendar calendar = Calendar.getInstance(timeZone);
+        calendar.setTimeInMillis(start);
+        StringBuilder prefix = new StringBuilder(17);
+        appendDigits(prefix, calendar.get(Calendar.YEAR), 4);
+        prefix.append('-');
+        appendDigits(prefix, calendar.get(Calendar.MONTH) + 1, 2);
+        prefix.append('-');
+        appendDigits(prefix, calendar.get(Calendar.DAY_OF_MONTH), 2);
+        prefix.append('T');
+        appendDigits(prefix, calendar.get(Calendar.HOUR_OF_DAY), 2);
+        prefix.append(':');
+        appendDigits(prefix, calendar.get(Calendar.MINUTE), 2);
+        prefix.append(':');
+        int offsetMinutes = timeZone.getOffset(start) / (int) MINUTE_MILLIS;
+        StringBuilder zone = new StringBuilder(5).append(offsetMinutes < 0 ? '-' : '+');
+        appendDigits(zone, Math.abs(offsetMinutes) / 60, 2);
+        appendDigits(zone, Math.abs(offsetMinutes) % 60, 2);
+        return new Minute(start, prefix.toString(), zone.toString());
+    }
+
+    private static void appendDigits(StringBuilder builder, int value, int digits) {
+        String text = Integer.toString(value);
+        for (int i = text.length(); i < digits; i++) {
+            builder.append('0');
+        }
+        builder.append(text);
+    }
+
+    private static final class Minute {
+        private final long start;
+        private final String prefix;
+        private final String zone;
+
+        private Minute(long start, String prefix, String zone) {
+            this.start = start;
+            this.prefix = prefix;
+            this.zone = zone;
+        }
+    }
+
+    private static class InstanceHolder {
+        private static final TimestampFormatter INSTANCE = new TimestampFormatter(TimeZone.getDefault());
+    }
+}
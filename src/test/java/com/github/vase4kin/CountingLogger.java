@@ -0,0 +1,166 @@
+package com.github.vase4kin;
+
+import org.slf4j.helpers.MarkerIgnoringBase;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logger which drops everything but counts info messages and their length,
+ * used by benchmarks and simulators instead of a mock to keep measurements clean
+ */
+public class CountingLogger extends MarkerIgnoringBase {
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public CountingLogger() {
+        this.name = CountingLogger.class.getName();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    /**
+     * Service messages are ASCII apart from user supplied names, length plus line separator is close enough
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public void reset() {
+        messages.set(0);
+        bytes.set(0);
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return true;
+    }
+
+    @Override
+    public void info(String msg) {
+        messages.incrementAndGet();
+        bytes.addAndGet(msg.length() + 1);
+    }
+
+    @Override
+    public void info(String format, Object arg) {
+        info(format);
+    }
+
+    @Override
+    public void info(String format, Object arg1, Object arg2) {
+        info(format);
+    }
+
+    @Override
+    public void info(String format, Object... arguments) {
+        info(format);
+    }
+
+    @Override
+    public void info(String msg, Throwable t) {
+        info(msg);
+    }
+
+    @Override
+    public boolean isTraceEnabled() {
+        return false;
+    }
+
+    @Override
+    public void trace(String msg) {
+    }
+
+    @Override
+    public void trace(String format, Object arg) {
+    }
+
+    @Override
+    public void trace(String format, Object arg1, Object arg2) {
+    }
+
+    @Override
+    public void trace(String format, Object... arguments) {
+    }
+
+    @Override
+    public void trace(String msg, Throwable t) {
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return false;
+    }
+
+    @Override
+    public void debug(String msg) {
+    }
+
+    @Override
+    public void debug(String format, Object arg) {
+    }
+
+    @Override
+    public void debug(String format, Object arg1, Object arg2) {
+    }
+
+    @Override
+    public void debug(String format, Object... arguments) {
+    }
+
+    @Override
+    public void debug(String msg, Throwable t) {
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return false;
+    }
+
+    @Override
+    public void warn(String msg) {
+    }
+
+    @Override
+    public void warn(String format, Object arg) {
+    }
+
+    @Override
+    public void warn(String format, Object arg1, Object arg2) {
+    }
+
+    @Override
+    public void warn(String format, Object... arguments) {
+    }
+
+    @Override
+    public void warn(String msg, Throwable t) {
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return false;
+    }
+
+    @Override
+    public void error(String msg) {
+    }
+
+    @Override
+    public void error(String format, Object arg) {
+    }
+
+    @Override
+    public void error(String format, Object arg1, Object arg2) {
+    }
+
+    @Override
+    public void error(String format, Object... arguments) {
+    }
+
+    @Override
+    public void error(String msg, Throwable t) {
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.vase4kin;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test binary event journal writer and reader
+ */
+public class EventJournalTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void before() throws Exception {
+        file = temporaryFolder.newFile("events.journal");
+    }
+
+    @Test
+    public void testEventsAreReadBack() throws Exception {
+
+        EventJournal journal = new EventJournal(file);
+        journal.suiteStarted("Test story", 1000L);
+        journal.testStarted("story.scenario", JournalEvent.NO_EXAMPLE, 1000L);
+        journal.testFinished("story.scenario", JournalEvent.NO_EXAMPLE, JournalEvent.Status.FAILED, 1500, 1000L);
+        journal.testStarted("story.outline.{value=1}", 0, 1000L);
+        journal.testFinished("story.outline.{value=1}", 0, JournalEvent.Status.IGNORED, 100, 1000L);
+        journal.suiteFinished("Test story", 1000L);
+        journal.close();
+
+        List<JournalEvent> events = readAll();
+
+        assertThat(events.size(), is(6));
+        assertThat(events.get(0).getType(), is(JournalEvent.Type.SUITE_STARTED));
+        assertThat(events.get(0).getName(), is("Test story"));
+        assertThat(events.get(1).getType(), is(JournalEvent.Type.TEST_STARTED));
+        assertThat(events.get(1).getExampleIndex(), is(JournalEvent.NO_EXAMPLE));
+        assertThat(events.get(2).getType(), is(JournalEvent.Type.TEST_FINISHED));
+        assertThat(events.get(2).getStatus(), is(JournalEvent.Status.FAILED));
+        assertThat(events.get(2).getDuration(), is(1500L));
+        assertThat(events.get(4).getName(), is("story.outline.{value=1}"));
+        assertThat(events.get(4).getExampleIndex(), is(0));
+        assertThat(events.get(4).getStatus(), is(JournalEvent.Status.IGNORED));
+        assertThat(events.get(5).getType(), is(JournalEvent.Type.SUITE_FINISHED));
+    }
+
+    @Test
+    public void testNonAsciiNames() throws Exception {
+
+        EventJournal journal = new EventJournal(file);
+        journal.suiteStarted("\u0418\u0441\u0442\u043e\u0440\u0438\u044f \u00e9\u4e2d", 1000L);
+        journal.close();
+
+        assertThat(readAll().get(0).getName(), is("\u0418\u0441\u0442\u043e\u0440\u0438\u044f \u00e9\u4e2d"));
+    }
+
+    @Test
+    public void testEventsAcrossMappedChunks() throws Exception {
+
+        EventJournal journal = new EventJournal(file);
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            journal.testFinished("story.scenario" + i, JournalEvent.NO_EXAMPLE, JournalEvent.Status.PASSED, i, 1000L);
+        }
+        journal.close();
+
+        List<JournalEvent> events = readAll();
+
+        assertThat(events.size(), is(count));
+        assertThat(events.get(count - 1).getName(), is("story.scenario" + (count - 1)));
+        assertThat(events.get(count - 1).getDuration(), is(count - 1L));
+    }
+
+    @Test
+    public void testNdjson() throws Exception {
+
+        EventJournal journal = new EventJournal(file);
+        journal.suiteStarted("Test \"story\"", 1000L);
+        journal.testFinished("story.scenario", JournalEvent.NO_EXAMPLE, JournalEvent.Status.PASSED, 100, 1000L);
+        journal.close();
+
+        StringWriter writer = new StringWriter();
+        new EventJournalReader(file).writeNdjson(writer);
+        String[] lines = writer.toString().split("\n");
+
+        assertThat(lines.length, is(2));
+        assertThat(lines[0].replaceAll("\"timestamp\":\\d+", "\"timestamp\":0"),
+                is("{\"type\":\"SUITE_STARTED\",\"timestamp\":0,\"name\":\"Test \\\"story\\\"\"}"));
+        assertThat(lines[1].replaceAll("\"timestamp\":\\d+", "\"timestamp\":0"),
+                is("{\"type\":\"TEST_FINISHED\",\"timestamp\":0,\"name\":\"story.scenario\",\"exampleIndex\":-1,\"status\":\"PASSED\",\"duration\":100}"));
+    }
+
+    @Test
+    public void testJournalIsClosedAfterOutermostSuiteAndOpenedForNextOne() throws Exception {
+
+        EventJournal journal = new EventJournal(file);
+        journal.write(createEvent(ListenerEvent.Type.SUITE_STARTED, "First story", 1000L), null);
+        journal.write(createEvent(ListenerEvent.Type.SUITE_FINISHED, "First story", 2000L), null);
+        assertThat(journal.isOpen(), is(false));
+        journal.write(createEvent(ListenerEvent.Type.SUITE_STARTED, "Second story", 3000L), null);
+        assertThat(journal.isOpen(), is(true));
+        journal.write(createEvent(ListenerEvent.Type.SUITE_FINISHED, "Second story", 4000L), null);
+
+        List<JournalEvent> events = readAll();
+
+        assertThat(events.size(), is(4));
+        assertThat(events.get(2).getName(), is("Second story"));
+        assertThat(events.get(0).getTimestamp(), is(1000L));
+        assertThat(events.get(3).getTimestamp(), is(4000L));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAJournal() throws Exception {
+
+        new EventJournalReader(temporaryFolder.newFile("empty.journal"));
+    }
+
+    private static ListenerEvent createEvent(ListenerEvent.Type type, String name, long timestamp) {
+        return new ListenerEvent(type, timestamp, Collections.singletonMap("name", name), null,
+                ListenerEvent.NO_EXAMPLE, 0);
+    }
+
+    private List<JournalEvent> readAll() throws Exception {
+        List<JournalEvent> events = new ArrayList<>();
+        for (JournalEvent event : new EventJournalReader(file)) {
+            events.add(event);
+        }
+        return events;
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.vase4kin;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Test class to test event pipeline stages
+ */
+public class EventPipelineTest {
+
+    @Mock
+    private Logger logger;
+
+    private RecordingSink firstSink;
+    private RecordingSink secondSink;
+
+    @Before
+    public void before() {
+        MockitoAnnotations.initMocks(this);
+        firstSink = new RecordingSink();
+        secondSink = new RecordingSink();
+    }
+
+    @Test
+    public void testEventIsEncodedOnceForAllSinks() {
+        EventPipeline pipeline = createPipeline(Collections.<EventFilter>emptyList(),
+                Collections.<EventEnricher>emptyList());
+
+        pipeline.publish(createEvent(ListenerEvent.Type.SUITE_STARTED, "Test story"));
+
+        assertThat(firstSink.messages.size(), is(1));
+        assertThat(firstSink.messages.get(0).getText(), is("##teamcity[testSuiteStarted  name='Test story']"));
+        assertThat(secondSink.messages.get(0), is(sameInstance(firstSink.messages.get(0))));
+    }
+
+    @Test
+    public void testFilteredEventIsDropped() {
+        EventFilter filter = new EventFilter() {
+            @Override
+            public boolean accept(ListenerEvent event) {
+                return event.getType() != ListenerEvent.Type.BLOCK_OPENED;
+            }
+        };
+        EventPipeline pipeline = createPipeline(Collections.singletonList(filter),
+                Collections.<EventEnricher>emptyList());
+
+        pipeline.publish(createEvent(ListenerEvent.Type.BLOCK_OPENED, "Step"));
+        pipeline.publish(createEvent(ListenerEvent.Type.BLOCK_CLOSED, "Step"));
+
+        assertThat(firstSink.events.size(), is(1));
+        assertThat(firstSink.events.get(0).getType(), is(ListenerEvent.Type.BLOCK_CLOSED));
+    }
+
+    @Test
+    public void testEnrichedEventIsEncoded() {
+        EventEnricher enricher = new EventEnricher() {
+            @Override
+            public ListenerEvent enrich(ListenerEvent event) {
+                return event.withAttribute("flowId", "flow");
+            }
+        };
+        EventPipeline pipeline = createPipeline(Collections.<EventFilter>emptyList(),
+                Collections.singletonList(enricher));
+
+        pipeline.publish(createEvent(ListenerEvent.Type.SUITE_STARTED, "Test story"));
+
+        assertThat(firstSink.events.get(0).getAttribute("flowId"), is("flow"));
+        assertThat(firstSink.messages.get(0).getText(),
+                is("##teamcity[testSuiteStarted  name='Test story' flowId='flow']"));
+    }
+
+    @Test
+    public void testTimestampOfEventIsAdded() {
+        EventPipeline pipeline = new EventPipeline(logger, Collections.<EventFilter>emptyList(),
+                Collections.<EventEnricher>emptyList(), Arrays.<EventSink>asList(firstSink),
+                new TimestampFormatter(TimeZone.getTimeZone("UTC")));
+
+        pipeline.publish(createEvent(ListenerEvent.Type.SUITE_STARTED, "Test story"));
+
+        assertThat(firstSink.messages.get(0).getText(),
+                is("##teamcity[testSuiteStarted  name='Test story' timestamp='1970-01-01T00:00:00.000+0000']"));
+    }
+
+    @Test
+    public void testFailingSinkIsDisabled() {
+        final EventSink failingSink = new EventSink() {
+            @Override
+            public void write(ListenerEvent event, EncodedMessage message) throws IOException {
+                throw new IOException("No space left on device");
+            }
+        };
+        EventPipeline pipeline = new EventPipeline(logger, Collections.<EventFilter>emptyList(),
+                Collections.<EventEnricher>emptyList(), Arrays.asList(firstSink, failingSink, secondSink));
+
+        pipeline.publish(createEvent(ListenerEvent.Type.SUITE_STARTED, "Test story"));
+        pipeline.publish(createEvent(ListenerEvent.Type.SUITE_FINISHED, "Test story"));
+
+        verify(logger).warn(eq(failingSink + " is disabled"), any(IOException.class));
+        assertThat(firstSink.events.size(), is(2));
+        assertThat(secondSink.events.size(), is(2));
+    }
+
+    private EventPipeline createPipeline(List<EventFilter> filters, List<EventEnricher> enrichers) {
+        return new EventPipeline(logger, filters, enrichers, Arrays.<EventSink>asList(firstSink, secondSink));
+    }
+
+    private static ListenerEvent createEvent(ListenerEvent.Type type, String name) {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("name", name);
+        return new ListenerEvent(type, 0, attributes, null, ListenerEvent.NO_EXAMPLE, 0);
+    }
+
+    private static class RecordingSink implements EventSink {
+
+        private final List<ListenerEvent> events = new ArrayList<>();
+        private final List<EncodedMessage> messages = new ArrayList<>();
+
+        @Override
+        public void write(ListenerEvent event, EncodedMessage message) {
+            events.add(event);
+            messages.add(message);
+        }
+    }
+}
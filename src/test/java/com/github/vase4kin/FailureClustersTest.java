@@ -0,0 +1,85 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test clustering of failures with the same cause
+ */
+public class FailureClustersTest {
+
+    private static final String ERROR_TYPE = "java.net.ConnectException";
+
+    private static final StackTraceElement[] STACK_TRACE = {
+            new StackTraceElement("com.example.Client", "connect", "Client.java", 42),
+            new StackTraceElement("com.example.Steps", "login", "Steps.java", 10),
+            new StackTraceElement("com.example.Steps", "openHomePage", "Steps.java", 20),
+            new StackTraceElement("com.example.Runner", "run", "Runner.java", 1)
+    };
+
+    @Test
+    public void testClusterTripsAtThreshold() {
+        FailureClusters failureClusters = new FailureClusters(2);
+
+        FailureClusters.Failure first = failureClusters.add(ERROR_TYPE, "Connection refused: localhost/127.0.0.1:8080", STACK_TRACE);
+        FailureClusters.Failure second = failureClusters.add(ERROR_TYPE, "Connection refused: localhost/127.0.0.1:8081\nretries exhausted", STACK_TRACE);
+        FailureClusters.Failure third = failureClusters.add(ERROR_TYPE, "Connection refused: localhost/127.0.0.1:8082", STACK_TRACE);
+
+        assertThat(first.isShortened(), is(false));
+        assertThat(first.isTripping(), is(false));
+        assertThat(second.isShortened(), is(false));
+        assertThat(second.isTripping(), is(true));
+        assertThat(third.isShortened(), is(true));
+        assertThat(third.isTripping(), is(false));
+
+        assertThat(second.getBuildProblemDescription(), containsString("2 tests failed with the same cause"));
+        assertThat(second.getBuildProblemIdentity(), is(third.getBuildProblemIdentity()));
+        assertThat(third.getShortDetails(), containsString("2 tests failed before with the same cause"));
+        assertThat(third.getShortDetails(), containsString(
+                "java.net.ConnectException: Connection refused: localhost/127.0.0.1:8080 at com.example.Client.connect(Client.java:42)"));
+    }
+
+    @Test
+    public void testDifferentCausesAreNotClustered() {
+        FailureClusters failureClusters = new FailureClusters(1);
+
+        FailureClusters.Failure connect = failureClusters.add(ERROR_TYPE, "Connection refused", STACK_TRACE);
+        FailureClusters.Failure assertion = failureClusters.add("java.lang.AssertionError", "Connection refused", STACK_TRACE);
+        StackTraceElement[] otherStackTrace = {STACK_TRACE[0], STACK_TRACE[2]};
+        FailureClusters.Failure otherFrames = failureClusters.add(ERROR_TYPE, "Connection refused", otherStackTrace);
+        // frames below the top ones are not a part of the fingerprint
+        StackTraceElement[] deeperStackTrace = {STACK_TRACE[0], STACK_TRACE[1], STACK_TRACE[2]};
+        FailureClusters.Failure sameTopFrames = failureClusters.add(ERROR_TYPE, "Connection refused", deeperStackTrace);
+
+        assertThat(connect.isTripping(), is(true));
+        assertThat(assertion.isTripping(), is(true));
+        assertThat(otherFrames.isTripping(), is(true));
+        assertThat(sameTopFrames.isShortened(), is(true));
+        assertThat(assertion.getBuildProblemIdentity(), not(connect.getBuildProblemIdentity()));
+    }
+
+    @Test
+    public void testSummaryIsPrintedWhenTrippedClustersChange() {
+        FailureClusters failureClusters = new FailureClusters(2);
+
+        failureClusters.add("java.lang.AssertionError", "expected true", null);
+        assertThat(failureClusters.getSummary(), is(nullValue()));
+
+        failureClusters.add(ERROR_TYPE, "Connection refused", STACK_TRACE);
+        failureClusters.add(ERROR_TYPE, "Connection refused", STACK_TRACE);
+        failureClusters.add(ERROR_TYPE, "Connection refused", STACK_TRACE);
+        String summary = failureClusters.getSummary();
+        assertThat(summary, containsString("Failure clusters:"));
+        assertThat(summary, containsString(": 3 tests, java.net.ConnectException: Connection refused at "));
+        assertThat(summary, not(containsString("AssertionError")));
+        assertThat(failureClusters.getSummary(), is(nullValue()));
+
+        failureClusters.add(ERROR_TYPE, "Connection refused", STACK_TRACE);
+        assertThat(failureClusters.getSummary(), containsString(": 4 tests, "));
+    }
+}
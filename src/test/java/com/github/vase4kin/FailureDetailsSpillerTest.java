@@ -0,0 +1,80 @@
+package com.github.vase4kin;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test spilling of large failure details to gzip files
+ */
+public class FailureDetailsSpillerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private Logger logger;
+
+    private FailureDetailsSpiller spiller;
+
+    @Before
+    public void before() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        spiller = new FailureDetailsSpiller(new File(temporaryFolder.getRoot(), "details"), 10, logger);
+    }
+
+    @Test
+    public void testDetailsOverThreshold() {
+        assertThat(spiller.isOverThreshold("Steps:\r\n"), is(false));
+        assertThat(spiller.isOverThreshold("Steps:\r\nStep (0.1)"), is(true));
+        assertThat(spiller.isOverThreshold(null), is(false));
+    }
+
+    @Test
+    public void testFullDetailsAreWritten() throws Exception {
+        String details = "Steps:\r\nFailed step (0.1) -> FAILURE\r\nStackTrace";
+
+        String path = spiller.spill("sprint-1.us-1.story.failed Scenario", details);
+        List<File> files = spiller.awaitWrittenFiles();
+
+        assertThat(files.size(), is(1));
+        assertThat(path, is(FailureDetailsSpiller.ARTIFACTS_PATH + "/" + files.get(0).getName()));
+        assertThat(files.get(0).getName().startsWith("sprint-1.us-1.story.failed_Scenario-"), is(true));
+        assertThat(read(files.get(0)), is(details));
+        assertThat(spiller.awaitWrittenFiles().isEmpty(), is(true));
+    }
+
+    @Test
+    public void testTruncatedDetails() {
+        assertThat(spiller.truncate("Steps:\r\nFailed step", "failure-details/test.txt.gz"),
+                is("Steps:\r\nFa\r\n... full details are in failure-details/test.txt.gz"));
+    }
+
+    @Test
+    public void testSurrogatePairIsNotSplit() {
+        assertThat(spiller.truncate("Steps:\r\nF\uD83D\uDE00 step", "failure-details/test.txt.gz"),
+                is("Steps:\r\nF\r\n... full details are in failure-details/test.txt.gz"));
+    }
+
+    private static String read(File file) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8")) {
+            char[] buffer = new char[1024];
+            for (int read = reader.read(buffer); read != -1; read = reader.read(buffer)) {
+                builder.append(buffer, 0, read);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.vase4kin;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test class to test switching to lighter failure details under heap pressure
+ */
+public class HeapPressureMonitorTest {
+
+    private static final long MAX = 1000;
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Mock
+    private MemoryPoolMXBean pool;
+
+    private HeapPressureMonitor monitor;
+
+    @Before
+    public void before() {
+        MockitoAnnotations.initMocks(this);
+        monitor = new HeapPressureMonitor(Collections.singletonList(pool), 85);
+    }
+
+    @Test
+    public void testPressureIsReportedOnce() {
+        assertThat(monitor.isUnderPressure(0), is(false));
+        assertThat(monitor.pollTransition(), is(nullValue()));
+
+        monitor.pressureDetected("G1 Old Gen", 0);
+        monitor.pressureDetected("G1 Old Gen", 0);
+
+        assertThat(monitor.isUnderPressure(0), is(true));
+        assertThat(monitor.pollTransition(),
+                is("Heap usage of G1 Old Gen is over 85%, failure details are summarized without steps"));
+        assertThat(monitor.pollTransition(), is(nullValue()));
+    }
+
+    @Test
+    public void testPressureIsOverBelowRecoveryLevel() {
+        monitor.pressureDetected("G1 Old Gen", 0);
+        monitor.pollTransition();
+
+        when(pool.getUsage()).thenReturn(new MemoryUsage(0, 800, 1000, MAX));
+        assertThat(monitor.isUnderPressure(SECOND - 1), is(true));
+        // 80% is over the recovery level of 75%
+        assertThat(monitor.isUnderPressure(SECOND), is(true));
+
+        when(pool.getUsage()).thenReturn(new MemoryUsage(0, 700, 1000, MAX));
+        assertThat(monitor.isUnderPressure(SECOND + 1), is(true));
+        assertThat(monitor.isUnderPressure(2 * SECOND), is(false));
+        assertThat(monitor.pollTransition(), is("Heap usage is below 75%, failure details are rendered in full again"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.vase4kin;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class to test reporting of hung tests
+ */
+public class HungTestWatchdogTest {
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+
+    @Mock
+    private HungTestWatchdog.Reporter reporter;
+
+    @Before
+    public void before() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testHungTestIsReportedOnce() {
+        HungTestWatchdog watchdog = new HungTestWatchdog(TIMEOUT, false);
+
+        watchdog.testStarted("Test story.hungScenario", reporter);
+        long now = System.nanoTime();
+        watchdog.check(now);
+        verifyZeroInteractions(reporter);
+
+        watchdog.check(now + TIMEOUT);
+        watchdog.check(now + 2 * TIMEOUT);
+
+        ArgumentCaptor<Map> propertiesCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(reporter, times(1)).report(eq(ListenerEvent.Type.MESSAGE), propertiesCaptor.capture());
+        Map<String, String> properties = propertiesCaptor.getValue();
+        assertThat(properties.get("status"), is("WARNING"));
+        assertThat(properties.get("text"), containsString("Test Test story.hungScenario is running for 60 s on thread "
+                + Thread.currentThread().getName()));
+        assertThat(properties.get("text"),
+                containsString("com.github.vase4kin.HungTestWatchdogTest.testHungTestIsReportedOnce("));
+    }
+
+    @Test
+    public void testFinishedTestIsNotReported() {
+        HungTestWatchdog watchdog = new HungTestWatchdog(TIMEOUT, false);
+
+        Object test = watchdog.testStarted("Test story.scenario", reporter);
+        watchdog.testFinished(test);
+        watchdog.testFinished(null);
+        watchdog.check(System.nanoTime() + TIMEOUT);
+
+        verifyZeroInteractions(reporter);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBuildProblemIsReported() {
+        HungTestWatchdog watchdog = new HungTestWatchdog(TIMEOUT, true);
+
+        watchdog.testStarted("Test story.hungScenario", reporter);
+        watchdog.check(System.nanoTime() + TIMEOUT);
+
+        ArgumentCaptor<Map> propertiesCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(reporter).report(eq(ListenerEvent.Type.MESSAGE), anyMapOf(String.class, String.class));
+        verify(reporter).report(eq(ListenerEvent.Type.BUILD_PROBLEM), propertiesCaptor.capture());
+        Map<String, String> properties = propertiesCaptor.getValue();
+        assertThat(properties.get("identity"), containsString("hung-test-"));
+        assertThat(properties.get("description"), is("Test Test story.hungScenario is running for 60 s on thread "
+                + Thread.currentThread().getName()));
+    }
+}
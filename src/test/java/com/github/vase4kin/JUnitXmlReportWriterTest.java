@@ -0,0 +1,160 @@
+package com.github.vase4kin;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test streaming JUnit XML report writer
+ */
+public class JUnitXmlReportWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File directory;
+
+    private JUnitXmlReportWriter writer;
+
+    @Before
+    public void before() {
+        directory = new File(temporaryFolder.getRoot(), "reports");
+        writer = new JUnitXmlReportWriter(directory);
+    }
+
+    @Test
+    public void testSuiteReport() throws Exception {
+
+        writer.suiteStarted("Test story");
+        writer.testCase("story.passedScenario", 100, ListenerEvent.Status.PASSED, null, null);
+        writer.testCase("story.failedScenario", 1500, ListenerEvent.Status.FAILED, "the test is failed!",
+                "Steps:\r\nFailed step (0.1) -> FAILURE");
+        writer.testCase("story.brokenScenario", 200, ListenerEvent.Status.ERROR, "the test is broken!",
+                "Steps:\r\nBroken step (0.2) -> ERROR");
+        writer.testCase("story.skippedScenario", 0, ListenerEvent.Status.IGNORED, null, null);
+        writer.suiteFinished();
+
+        String report = readReport("TEST-Test_story.xml");
+
+        assertThat(report, containsString("<testsuite name=\"Test story\" tests=\"4\" failures=\"1\" errors=\"1\" skipped=\"1\" time=\"1.800\">"));
+        assertThat(report, containsString("<testcase name=\"story.passedScenario\" classname=\"Test story\" time=\"0.100\"></testcase>"));
+        assertThat(report, containsString("<failure message=\"the test is failed!\">Steps:"));
+        assertThat(report, containsString("<error message=\"the test is broken!\">Steps:"));
+        assertThat(report, containsString("<testcase name=\"story.skippedScenario\" classname=\"Test story\" time=\"0.000\"><skipped/></testcase>"));
+        assertThat(report.trim().endsWith("</testsuite>"), is(true));
+        assertThat(directory.list().length, is(1));
+    }
+
+    @Test
+    public void testNestedSuitesAreWrittenToSeparateFiles() throws Exception {
+
+        writer.suiteStarted("outer");
+        writer.suiteStarted("inner");
+        writer.testCase("inner.test", 100, ListenerEvent.Status.PASSED, null, null);
+        writer.suiteFinished();
+        writer.testCase("outer.test", 100, ListenerEvent.Status.PASSED, null, null);
+        writer.suiteFinished();
+
+        assertThat(readReport("TEST-inner.xml"), containsString("<testcase name=\"inner.test\""));
+        assertThat(readReport("TEST-outer.xml"), containsString("<testcase name=\"outer.test\""));
+        assertThat(directory.list().length, is(2));
+    }
+
+    @Test
+    public void testSameSuiteNameDoesNotOverwriteReport() throws Exception {
+
+        writer.suiteStarted("suite");
+        writer.suiteFinished();
+        writer.suiteStarted("suite");
+        writer.suiteFinished();
+
+        assertThat(new File(directory, "TEST-suite.xml").exists(), is(true));
+        assertThat(new File(directory, "TEST-suite-1.xml").exists(), is(true));
+    }
+
+    @Test
+    public void testWritersOfParallelFlowsDoNotOverwriteReports() throws Exception {
+        JUnitXmlReportWriter otherWriter = new JUnitXmlReportWriter(directory);
+
+        writer.suiteStarted("suite");
+        writer.testCase("first.test", 100, ListenerEvent.Status.PASSED, null, null);
+        otherWriter.suiteStarted("suite");
+        otherWriter.testCase("second.test", 100, ListenerEvent.Status.PASSED, null, null);
+        writer.suiteFinished();
+        otherWriter.suiteFinished();
+
+        assertThat(readReport("TEST-suite.xml"), containsString("<testcase name=\"first.test\""));
+        assertThat(readReport("TEST-suite-1.xml"), containsString("<testcase name=\"second.test\""));
+        assertThat(directory.list().length, is(2));
+    }
+
+    @Test
+    public void testInvalidXmlCharactersAreDropped() throws Exception {
+
+        writer.suiteStarted("suite");
+        writer.testCase("test", 100, ListenerEvent.Status.FAILED, "\u001B[31mred\u001B[0m", "details\u0000");
+        writer.suiteFinished();
+
+        assertThat(readReport("TEST-suite.xml"), containsString("<failure message=\"[31mred[0m\">details</failure>"));
+    }
+
+    @Test
+    public void testUnpairedSurrogatesAreDropped() throws Exception {
+
+        writer.suiteStarted("suite");
+        writer.testCase("test", 100, ListenerEvent.Status.FAILED, "lone \uDC00 low",
+                "lone \uD800 high, pair \uD83D\uDE00, cut \uD800");
+        writer.suiteFinished();
+
+        assertThat(readReport("TEST-suite.xml"),
+                containsString("<failure message=\"lone  low\">lone  high, pair \uD83D\uDE00, cut </failure>"));
+    }
+
+    @Test
+    public void testTestCaseWithoutSuiteIsIgnored() throws Exception {
+
+        writer.testCase("test", 100, ListenerEvent.Status.PASSED, null, null);
+        writer.suiteFinished();
+
+        assertThat(directory.exists(), is(false));
+    }
+
+    @Test
+    public void testBodyIsWrittenWhenSuiteIsFinished() throws Exception {
+
+        writer.suiteStarted("suite");
+        writer.testCase("test", 100, ListenerEvent.Status.PASSED, null, null);
+
+        File[] bodies = directory.listFiles();
+        assertThat(bodies.length, is(1));
+        assertThat(bodies[0].length(), is(0L));
+
+        writer.suiteFinished();
+
+        assertThat(readReport("TEST-suite.xml"), containsString("<testcase name=\"test\""));
+    }
+
+    @Test
+    public void testBodyOfUnfinishedSuiteIsDeleted() throws Exception {
+
+        writer.suiteStarted("suite");
+        writer.testCase("test", 100, ListenerEvent.Status.PASSED, null, null);
+
+        JUnitXmlReportWriter.deletePendingBodies();
+
+        assertThat(directory.list().length, is(0));
+    }
+
+    private String readReport(String name) throws Exception {
+        return new String(Files.readAllBytes(new File(directory, name).toPath()), Charset.forName("UTF-8"));
+    }
+}
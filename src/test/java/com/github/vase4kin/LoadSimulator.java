@@ -0,0 +1,252 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.DataTable;
+import net.thucydides.core.model.Story;
+import net.thucydides.core.model.TestOutcome;
+import net.thucydides.core.model.TestStep;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static net.thucydides.core.model.TestResult.*;
+
+/**
+ * End-to-end load simulator driving {@link TeamCityStepListener} with synthetic Serenity event streams.
+ * <p>
+ * Not a unit test, run it in its own JVM with the heap size of your agents, e.g.
+ * <pre>
+ * java -Xmx512m -Dsuites=2000 -Dthreads=8 -cp ... com.github.vase4kin.LoadSimulator
+ * </pre>
+ * Supported properties (defaults in brackets): suites (1000), testsPerSuite (20), exampleRows (500),
+ * dataDrivenEvery (50), stepDepth (4), stepsPerLevel (3), threads (1), seed (42).
+ * Every run is executed single-threaded first and then with the requested number of threads.
+ */
+public class LoadSimulator {
+
+    private static final Throwable ASSERTION_ERROR = new AssertionError("expected:<200> but was:<500>");
+
+    private final int suites = Integer.getInteger("suites", 1000);
+    private final int testsPerSuite = Integer.getInteger("testsPerSuite", 20);
+    private final int exampleRows = Integer.getInteger("exampleRows", 500);
+    private final int dataDrivenEvery = Integer.getInteger("dataDrivenEvery", 50);
+    private final int stepDepth = Integer.getInteger("stepDepth", 4);
+    private final int stepsPerLevel = Integer.getInteger("stepsPerLevel", 3);
+    private final int threads = Integer.getInteger("threads", 1);
+    private final long seed = Long.getLong("seed", 42L);
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadSimulator simulator = new LoadSimulator();
+        simulator.run(1);
+        if (simulator.threads > 1) {
+            simulator.run(simulator.threads);
+        }
+    }
+
+    private void run(int threadCount) throws InterruptedException {
+        final List<Suite> workload = createWorkload();
+        final CountingLogger logger = new CountingLogger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        System.gc();
+        resetPeakUsage();
+        long gcCountBefore = getGcCount();
+        long gcTimeBefore = getGcTime();
+
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        long startTime = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            final int offset = t;
+            final int step = threadCount;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // one listener per thread, the same way Serenity creates one per step event bus
+                        TeamCityStepListener listener = new TeamCityStepListener(logger);
+                        for (int i = offset; i < workload.size(); i += step) {
+                            workload.get(i).replay(listener);
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-simulator-" + t);
+            thread.start();
+        }
+        done.await();
+        long wallTime = System.nanoTime() - startTime;
+
+        if (failure.get() != null) {
+            throw new IllegalStateException("Simulation failed", failure.get());
+        }
+
+        double seconds = wallTime / 1e9;
+        System.out.println(String.format("threads=%d suites=%d tests=%d", threadCount, suites, countTests(workload)));
+        System.out.println(String.format("  wall time:     %.3f s", seconds));
+        System.out.println(String.format("  messages:      %d (%.0f msg/s)", logger.getMessages(), logger.getMessages() / seconds));
+        System.out.println(String.format("  bytes emitted: %d (%.2f MB/s)", logger.getBytes(), logger.getBytes() / seconds / (1024 * 1024)));
+        System.out.println(String.format("  peak heap:     %.2f MB", getPeakHeapUsage() / (1024.0 * 1024)));
+        System.out.println(String.format("  gc:            %d collections, %d ms", getGcCount() - gcCountBefore, getGcTime() - gcTimeBefore));
+    }
+
+    private List<Suite> createWorkload() {
+        Random random = new Random(seed);
+        List<Suite> workload = new ArrayList<>(suites);
+        int testNumber = 0;
+        for (int s = 0; s < suites; s++) {
+            Story story = Story.withIdAndPath("story" + s, "Story " + s, "stories/simulation/story" + s + ".story");
+            Suite suite = new Suite(story);
+            for (int t = 0; t < testsPerSuite; t++, testNumber++) {
+                if (dataDrivenEvery > 0 && testNumber % dataDrivenEvery == 0) {
+                    suite.tests.add(createDataDrivenOutcome(story, "outline" + t, random));
+                } else {
+                    suite.tests.add(new Scenario(createOutcome(story, "scenario" + t, random), 0));
+                }
+            }
+            workload.add(suite);
+        }
+        return workload;
+    }
+
+    /**
+     * 85% passed, 8% failed, 5% pending, 2% errors
+     */
+    private TestOutcome createOutcome(Story story, String name, Random random) {
+        TestOutcome outcome = new TestOutcome(name);
+        outcome.setUserStory(story);
+        int roll = random.nextInt(100);
+        if (roll < 85) {
+            outcome.recordStep(createStepTree("Step", stepDepth, null));
+        } else if (roll < 93) {
+            outcome.recordStep(createStepTree("Step", stepDepth, ASSERTION_ERROR));
+        } else if (roll < 98) {
+            outcome.recordStep(TestStepFactory.getPendingTestStep("Pending step"));
+        } else {
+            outcome.recordStep(createStepTree("Step", stepDepth, new IllegalStateException("connection refused")));
+        }
+        return outcome;
+    }
+
+    private Scenario createDataDrivenOutcome(Story story, String name, Random random) {
+        TestOutcome outcome = new TestOutcome(name);
+        outcome.setUserStory(story);
+        outcome.useExamplesFrom(DataTable.withHeaders(Arrays.asList("row")).build());
+        for (int row = 0; row < exampleRows; row++) {
+            TestStep example = new TestStep("[" + (row + 1) + "] {row=" + row + "}");
+            int roll = random.nextInt(100);
+            if (roll < 90) {
+                example.addChildStep(TestStepFactory.getSuccessfulTestStep("Row step"));
+            } else if (roll < 97) {
+                example.addChildStep(TestStepFactory.getFailureTestStepWithAssertionError("Row step"));
+            } else {
+                example.addChildStep(TestStepFactory.getPendingTestStep("Row step"));
+            }
+            outcome.recordStep(example);
+        }
+        return new Scenario(outcome, exampleRows);
+    }
+
+    /**
+     * Builds a step tree with stepsPerLevel children on every level, the last leaf fails with the given error if any
+     */
+    private TestStep createStepTree(String description, int depth, Throwable error) {
+        if (depth <= 1) {
+            return error == null
+                    ? TestStepFactory.getSuccessfulTestStep(description)
+                    : TestStepFactory.getErrorTestStepWithThrowable(description, error);
+        }
+        TestStep group = TestStepFactory.createNewTestStep(description, error == null ? SUCCESS : FAILURE);
+        for (int i = 0; i < stepsPerLevel; i++) {
+            boolean last = i == stepsPerLevel - 1;
+            group.addChildStep(createStepTree(description + "." + i, depth - 1, last ? error : null));
+        }
+        return group;
+    }
+
+    private static int countTests(List<Suite> workload) {
+        int count = 0;
+        for (Suite suite : workload) {
+            for (Scenario test : suite.tests) {
+                count += Math.max(1, test.examples);
+            }
+        }
+        return count;
+    }
+
+    private static void resetPeakUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    private static long getPeakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static class Suite {
+
+        private final Story story;
+        private final List<Scenario> tests = new ArrayList<>();
+
+        private Suite(Story story) {
+            this.story = story;
+        }
+
+        private void replay(TeamCityStepListener listener) {
+            listener.testSuiteStarted(story);
+            for (Scenario test : tests) {
+                test.replay(listener);
+            }
+            listener.testSuiteFinished();
+        }
+    }
+
+    private static class Scenario {
+
+        private final TestOutcome outcome;
+        private final int examples;
+
+        private Scenario(TestOutcome outcome, int examples) {
+            this.outcome = outcome;
+            this.examples = examples;
+        }
+
+        private void replay(TeamCityStepListener listener) {
+            listener.testStarted(outcome.getMethodName());
+            for (int row = 0; row < examples; row++) {
+                listener.exampleStarted(Collections.singletonMap("row", String.valueOf(row)));
+                listener.exampleFinished();
+            }
+            listener.testFinished(outcome);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test coalescing of passing test messages
+ */
+public class PassedTestCoalescerTest {
+
+    private static final long THRESHOLD = 1000;
+
+    private final PassedTestCoalescer coalescer = new PassedTestCoalescer(THRESHOLD, 2);
+
+    @Test
+    public void testPressureStartsOverThresholdAndEndsBelowHalfOfIt() {
+
+        assertThat(coalescer.isUnderPressure(), is(false));
+
+        coalescer.recordLatency(5000, 1);
+        assertThat(coalescer.isUnderPressure(), is(true));
+
+        for (int i = 0; i < 5; i++) {
+            coalescer.recordLatency(700, 1);
+        }
+        assertThat(coalescer.isUnderPressure(), is(true));
+
+        for (int i = 0; i < 50; i++) {
+            coalescer.recordLatency(100, 1);
+        }
+        assertThat(coalescer.isUnderPressure(), is(false));
+    }
+
+    @Test
+    public void testLatencyIsMeasuredPerLine() {
+
+        coalescer.recordLatency(1500, 2);
+        assertThat(coalescer.isUnderPressure(), is(false));
+    }
+
+    @Test
+    public void testBatch() {
+
+        assertThat(coalescer.isEmpty(), is(true));
+
+        coalescer.add("started1", "finished1");
+        assertThat(coalescer.isFull(), is(false));
+        coalescer.add("started2", "finished2");
+        assertThat(coalescer.isFull(), is(true));
+        assertThat(coalescer.getLines(), is(4));
+
+        assertThat(coalescer.drain(), is("started1\nfinished1\nstarted2\nfinished2"));
+        assertThat(coalescer.isEmpty(), is(true));
+        assertThat(coalescer.getCoalescedMessagesCount(), is(4L));
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.vase4kin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test progress messages
+ */
+public class ProgressReporterTest {
+
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testProgressIsReportedOncePerInterval() {
+        ProgressReporter progressReporter = new ProgressReporter(100, INTERVAL, null, 0);
+
+        for (int i = 0; i < 19; i++) {
+            assertThat(progressReporter.testFinished(i % 10 == 0, INTERVAL - 1), is(nullValue()));
+        }
+        // 20 tests in 10 s, 80 tests left
+        assertThat(progressReporter.testFinished(false, INTERVAL),
+                is("Tests: 20/100 completed, 2 failed, 2.0 tests/s, ETA 40s"));
+        assertThat(progressReporter.testFinished(false, INTERVAL + 1), is(nullValue()));
+    }
+
+    @Test
+    public void testRateIsRolling() {
+        ProgressReporter progressReporter = new ProgressReporter(0, INTERVAL, null, 0);
+
+        for (int i = 0; i < 100; i++) {
+            progressReporter.testFinished(false, INTERVAL - 1);
+        }
+        assertThat(progressReporter.testFinished(false, INTERVAL), is("Tests: 101 completed, 0 failed, 10.1 tests/s"));
+        // 1 test/s in the second interval moves the rate by 30% of the difference
+        for (int i = 0; i < 9; i++) {
+            progressReporter.testFinished(false, 2 * INTERVAL - 1);
+        }
+        assertThat(progressReporter.testFinished(false, 2 * INTERVAL), is("Tests: 111 completed, 0 failed, 7.4 tests/s"));
+    }
+
+    @Test
+    public void testCountIsKeptForTheNextRun() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "progress/tests.count");
+        assertThat(ProgressReporter.readTestsCount(file), is(0L));
+
+        ProgressReporter progressReporter = new ProgressReporter(0, INTERVAL, file, 0);
+        progressReporter.testFinished(false, 0);
+        progressReporter.save();
+        progressReporter.testFinished(true, 0);
+        progressReporter.save();
+
+        assertThat(ProgressReporter.readTestsCount(file), is(2L));
+        assertThat(file.getParentFile().list().length, is(1));
+    }
+
+    @Test
+    public void testDurationFormat() {
+        assertThat(ProgressReporter.formatDuration(59), is("59s"));
+        assertThat(ProgressReporter.formatDuration(61), is("1m 01s"));
+        assertThat(ProgressReporter.formatDuration(3 * 3600 + 5 * 60 + 7), is("3h 05m"));
+    }
+}
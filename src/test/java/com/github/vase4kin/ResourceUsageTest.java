@@ -0,0 +1,52 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test resource usage snapshots and their arithmetic
+ */
+public class ResourceUsageTest {
+
+    @Test
+    public void testUsageBetweenSnapshots() {
+        ResourceUsage earlier = new ResourceUsage(1000000, 2048, 10, 1);
+        ResourceUsage later = new ResourceUsage(5000000, 4096, 30, 3);
+
+        ResourceUsage usage = later.minus(earlier);
+
+        assertThat(usage.getCpuTimeNanos(), is(4000000L));
+        assertThat(usage.getAllocatedBytes(), is(2048L));
+        assertThat(usage.getGcTimeMillis(), is(20L));
+        assertThat(usage.getGcCount(), is(2L));
+        assertThat(usage.toString(), is("CPU time 4 ms, allocated 2048 bytes, GC time 20 ms in 2 collections"));
+    }
+
+    @Test
+    public void testUnavailableValuesStayUnavailable() {
+        ResourceUsage unavailable = new ResourceUsage(ResourceUsage.UNAVAILABLE, ResourceUsage.UNAVAILABLE, 0, 0);
+        ResourceUsage usage = new ResourceUsage(1000000, 2048, 10, 1);
+
+        assertThat(usage.minus(unavailable).getCpuTimeNanos(), is(ResourceUsage.UNAVAILABLE));
+        assertThat(usage.plus(unavailable).getAllocatedBytes(), is(ResourceUsage.UNAVAILABLE));
+        assertThat(unavailable.toString(), is("CPU time n/a, allocated n/a, GC time 0 ms in 0 collections"));
+    }
+
+    @Test
+    public void testAllocationIsMeasured() {
+        ResourceUsage start = ResourceUsage.snapshot();
+        byte[][] allocated = new byte[16][];
+        for (int i = 0; i < allocated.length; i++) {
+            allocated[i] = new byte[64 * 1024];
+        }
+        ResourceUsage usage = ResourceUsage.snapshot().minus(start);
+
+        assertThat(allocated.length, is(16));
+        if (usage.getAllocatedBytes() != ResourceUsage.UNAVAILABLE) {
+            assertThat(usage.getAllocatedBytes(), greaterThan(16L * 64 * 1024));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.github.vase4kin;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class to test aggregation of service messages of many forks
+ */
+public class ServiceMessageAggregatorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private ServiceMessageAggregator aggregator;
+
+    @After
+    public void after() throws Exception {
+        if (aggregator != null) {
+            aggregator.close();
+        }
+    }
+
+    @Test
+    public void testFlowIsAddedToMessagesWithoutFlow() {
+        assertThat(tagFlow("##teamcity[testStarted  name='a']"), is("##teamcity[testStarted  name='a' flowId='fork-1']"));
+        assertThat(tagFlow("##teamcity[testStarted  name='a' flowId='main']"), is("##teamcity[testStarted  name='a' flowId='main']"));
+        assertThat(tagFlow("##teamcity[publishArtifacts 'a.txt']"), is("##teamcity[publishArtifacts 'a.txt']"));
+        assertThat(tagFlow("Tests: 1/2 completed"), is("Tests: 1/2 completed"));
+    }
+
+    @Test
+    public void testMessagesOfForksArePrintedAsOneStream() throws Exception {
+        ServerSocketChannel server = ServiceMessageAggregator.bind("127.0.0.1:0");
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        startAggregator(server);
+
+        sendFork("127.0.0.1:" + port, "##teamcity[testStarted  name='a']", "##teamcity[testFinished  name='a']");
+        sendFork("127.0.0.1:" + port, "##teamcity[testStarted  name='b' flowId='b']");
+
+        assertThat(awaitLines(3), is(Arrays.asList(
+                "##teamcity[testStarted  name='a' flowId='fork-1']",
+                "##teamcity[testFinished  name='a' flowId='fork-1']",
+                "##teamcity[testStarted  name='b' flowId='b']")));
+    }
+
+    @Test
+    public void testUnixDomainSocket() throws Exception {
+        String address = ServiceMessageAggregator.UNIX_PREFIX + temporaryFolder.getRoot() + "/aggregator.sock";
+        ServerSocketChannel server;
+        try {
+            server = ServiceMessageAggregator.bind(address);
+        } catch (IOException e) {
+            Assume.assumeNoException(e);
+            return;
+        }
+        startAggregator(server);
+
+        sendFork(address, "##teamcity[testStarted  name='a']");
+
+        assertThat(awaitLines(1), is(Arrays.asList("##teamcity[testStarted  name='a' flowId='fork-1']")));
+    }
+
+    @Test
+    public void testSinkFallsBackWhenConnectionIsClosed() throws Exception {
+        Logger logger = mock(Logger.class);
+        EventSink fallback = mock(EventSink.class);
+        ServerSocketChannel server = ServiceMessageAggregator.bind("127.0.0.1:0");
+        int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+        startAggregator(server);
+        AggregatorConnection connection = new AggregatorConnection(ServiceMessageAggregator.connect("127.0.0.1:" + port));
+        connection.close();
+        AggregatorSink sink = new AggregatorSink(logger, connection, fallback);
+        ListenerEvent started = createEvent(ListenerEvent.Type.TEST_STARTED);
+        ListenerEvent finished = createEvent(ListenerEvent.Type.TEST_FINISHED);
+        EncodedMessage startedMessage = new EncodedMessage("##teamcity[testStarted  name='a']");
+        EncodedMessage finishedMessage = new EncodedMessage("##teamcity[testFinished  name='a']");
+
+        sink.write(started, startedMessage);
+        sink.write(finished, finishedMessage);
+        sink.write(started, startedMessage);
+
+        verify(fallback, times(2)).write(started, startedMessage);
+        verify(fallback).write(finished, finishedMessage);
+        verify(logger, times(1)).warn(anyString());
+    }
+
+    @Test
+    public void testMessagesOfTestAreSentInOneWrite() throws Exception {
+        WritableByteChannel channel = mock(WritableByteChannel.class);
+        final List<String> writes = new ArrayList<>();
+        when(channel.write(any(ByteBuffer.class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                ByteBuffer buffer = (ByteBuffer) invocation.getArguments()[0];
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                writes.add(new String(bytes, EventJournal.UTF_8));
+                return bytes.length;
+            }
+        });
+        AggregatorSink sink = new AggregatorSink(mock(Logger.class), new AggregatorConnection(channel),
+                mock(EventSink.class));
+
+        sink.write(createEvent(ListenerEvent.Type.TEST_STARTED), new EncodedMessage("##teamcity[testStarted  name='a']"));
+        sink.write(createEvent(ListenerEvent.Type.TEST_FAILED), new EncodedMessage("##teamcity[testFailed  name='a']"));
+        sink.write(createEvent(ListenerEvent.Type.TEST_FINISHED), new EncodedMessage("##teamcity[testFinished  name='a']"));
+        sink.write(createEvent(ListenerEvent.Type.SUITE_FINISHED), new EncodedMessage("##teamcity[testSuiteFinished  name='s']"));
+
+        assertThat(writes, is(Arrays.asList(
+                "##teamcity[testStarted  name='a']\n##teamcity[testFailed  name='a']\n##teamcity[testFinished  name='a']\n",
+                "##teamcity[testSuiteFinished  name='s']\n")));
+    }
+
+    private static ListenerEvent createEvent(ListenerEvent.Type type) {
+        return new ListenerEvent(type, 0, Collections.singletonMap("name", "a"), null, ListenerEvent.NO_EXAMPLE, 0);
+    }
+
+    private static String tagFlow(String line) {
+        return new String(ServiceMessageAggregator.tagFlow(line.getBytes(EventJournal.UTF_8),
+                "fork-1".getBytes(EventJournal.UTF_8)), EventJournal.UTF_8);
+    }
+
+    private void startAggregator(ServerSocketChannel server) {
+        aggregator = new ServiceMessageAggregator(server, out);
+        aggregator.start();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    aggregator.accept();
+                } catch (IOException e) {
+                    // closed by the test
+                }
+            }
+        }).start();
+    }
+
+    /**
+     * Connections are closed once the messages are sent, so the second fork never gets the first flow
+     */
+    private static void sendFork(String address, String... messages) throws IOException {
+        AggregatorConnection connection = new AggregatorConnection(ServiceMessageAggregator.connect(address));
+        EventSink fallback = mock(EventSink.class);
+        AggregatorSink sink = new AggregatorSink(mock(Logger.class), connection, fallback);
+        for (String message : messages) {
+            sink.write(createEvent(ListenerEvent.Type.MESSAGE), new EncodedMessage(message));
+        }
+        verifyZeroInteractions(fallback);
+        connection.close();
+        // let the aggregator accept the fork before the next one connects
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<String> awaitLines(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            String output = new String(out.toByteArray(), EventJournal.UTF_8);
+            List<String> lines = Arrays.asList(output.split("\n"));
+            if (output.endsWith("\n") && lines.size() >= count || System.currentTimeMillis() > deadline) {
+                return lines;
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.vase4kin;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Throughput benchmark of {@link ServiceMessageReader}:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -DsizeMb=1024 -cp target/classes:target/test-classes:$(cat cp.txt) com.github.vase4kin.ServiceMessageReaderBenchmark
+ * </pre>
+ * Generates a build log of listener messages with timestamp prefixes, then reads it several times and reports GB/s
+ * of the best run. Every message name and one attribute are decoded, the way a statistics script would use the reader
+ */
+public class ServiceMessageReaderBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        long sizeBytes = Long.getLong("sizeMb", 512L) * 1024 * 1024;
+        int runs = Integer.getInteger("runs", 5);
+
+        File file = File.createTempFile("build-", ".log");
+        file.deleteOnExit();
+        long messages = generate(file, sizeBytes);
+
+        final long[] decodedChars = new long[1];
+        ServiceMessageReader.Handler handler = new ServiceMessageReader.Handler() {
+            @Override
+            public void onMessage(ServiceMessage message) {
+                String name = message.getAttribute("name");
+                decodedChars[0] += message.getName().length() + (name != null ? name.length() : 0);
+            }
+        };
+        double best = 0;
+        for (int run = 0; run < runs; run++) {
+            long startTime = System.nanoTime();
+            long count;
+            try (ServiceMessageReader reader = new ServiceMessageReader(file)) {
+                count = reader.read(handler);
+            }
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            double throughput = file.length() / seconds / 1e9;
+            best = Math.max(best, throughput);
+            System.out.println(String.format("Run %d: %d of %d messages, %.3f s, %.2f GB/s",
+                    run + 1, count, messages, seconds, throughput));
+        }
+        System.out.println(String.format("Best: %.2f GB/s over %d MB, %d chars decoded",
+                best, file.length() / 1024 / 1024, decodedChars[0]));
+    }
+
+    private static long generate(File file, long sizeBytes) throws IOException {
+        String details = "Steps:\r\nOpen page (0.1) -> SUCCESS\r\nCheck [status] 'done' (0.2) -> FAILURE\r\nStackTrace";
+        long messages = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 20)) {
+            long written = 0;
+            for (int i = 0; written < sizeBytes; i++) {
+                String name = "sprint-1.us-1.story.scenario" + i;
+                for (String line : new String[]{
+                        format("testStarted", "name", name),
+                        i % 10 == 0 ? format("testFailed", "name", name, "details", details) : null,
+                        format("testFinished", "name", name, "duration", String.valueOf(i % 1000))}) {
+                    if (line != null) {
+                        String prefixed = "[08:00:00] " + line + "\n";
+                        writer.write(prefixed);
+                        written += prefixed.length();
+                        messages++;
+                    }
+                }
+            }
+        }
+        return messages;
+    }
+
+    private static String format(String messageName, String... properties) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            map.put(properties[i], properties[i + 1]);
+        }
+        map.put("flowId", "1");
+        return ServiceMessageEncoder.format(messageName, map);
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.Story;
+import net.thucydides.core.model.TestOutcome;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Test class to test reading of service messages back from a log
+ */
+public class ServiceMessageReaderTest {
+
+    private static final String ESCAPED_VALUE = "\\|'\n\r\\[\\][]";
+    private static final String NON_ASCII_VALUE = "\u0418\u0441\u0442\u043e\u0440\u0438\u044f \u00e9\u4e2d";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private Logger logger;
+
+    private File file;
+
+    @Before
+    public void before() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        file = temporaryFolder.newFile("build.log");
+    }
+
+    @Test
+    public void testMessagesAreReadWithPrefixesAndPlainLines() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("name", ESCAPED_VALUE);
+        properties.put("details", NON_ASCII_VALUE);
+        properties.put("flowId", "1");
+        write("[INFO] Running tests",
+                "[12:00:00] " + ServiceMessageEncoder.format("testFailed", properties),
+                "##teamcity[publishArtifacts 'target/failure-details => failure-details']",
+                "##teamcity[broken",
+                "##teamcity[testSuiteFinished  name='Test story']");
+
+        List<ServiceMessage> messages = new ArrayList<>();
+        List<Map<String, String>> attributes = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        readAll(new ServiceMessageReader(file), attributes, values, messages);
+
+        assertThat(attributes.size(), is(3));
+        assertThat(attributes.get(0), is(properties));
+        assertThat(values.get(0), is(nullValue()));
+        assertThat(values.get(1), is("target/failure-details => failure-details"));
+        assertThat(attributes.get(2).get("name"), is("Test story"));
+    }
+
+    @Test
+    public void testLazyAttributeAndType() throws Exception {
+        write("##teamcity[testFinished  duration='100' name='story.scenario']");
+
+        final List<String> decoded = new ArrayList<>();
+        new ServiceMessageReader(file).read(new ServiceMessageReader.Handler() {
+            @Override
+            public void onMessage(ServiceMessage message) {
+                decoded.add(String.valueOf(message.getType()));
+                decoded.add(message.getAttribute("duration"));
+                decoded.add(message.getAttribute("missing"));
+            }
+        });
+
+        assertThat(decoded.get(0), is("TEST_FINISHED"));
+        assertThat(decoded.get(1), is("100"));
+        assertThat(decoded.get(2), is(nullValue()));
+    }
+
+    @Test
+    public void testMessagesAcrossChunks() throws Exception {
+        String[] lines = new String[1000];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = "##teamcity[testStarted  name='story.scenario" + i + "']";
+        }
+        write(lines);
+
+        List<Map<String, String>> attributes = new ArrayList<>();
+        long count = readAll(new ServiceMessageReader(file, 1000), attributes, new ArrayList<String>(),
+                new ArrayList<ServiceMessage>());
+
+        assertThat(count, is(1000L));
+        assertThat(attributes.get(999).get("name"), is("story.scenario999"));
+    }
+
+    @Test
+    public void testListenerOutputRoundTrip() throws Exception {
+        TeamCityStepListener listener = new TeamCityStepListener(logger);
+        Story story = Story.withIdAndPath("storyId", ESCAPED_VALUE, "stories/sprint-1/us-1/story.story");
+        TestOutcome testOutcome = new TestOutcome(NON_ASCII_VALUE);
+        testOutcome.setUserStory(story);
+        testOutcome.recordStep(TestStepFactory.getIgnoredTestStep("Ignored step"));
+        listener.testSuiteStarted(story);
+        listener.testFinished(testOutcome);
+        listener.testSuiteFinished();
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, atLeastOnce()).info(stringArgumentCaptor.capture());
+        List<String> printed = stringArgumentCaptor.getAllValues();
+        write(printed.toArray(new String[printed.size()]));
+
+        final List<String> encoded = new ArrayList<>();
+        new ServiceMessageReader(file).read(new ServiceMessageReader.Handler() {
+            @Override
+            public void onMessage(ServiceMessage message) {
+                encoded.add(ServiceMessageEncoder.format(message.getName(), message.getAttributes()));
+            }
+        });
+
+        assertThat(encoded, is(printed));
+    }
+
+    private static long readAll(ServiceMessageReader reader, final List<Map<String, String>> attributes,
+                                final List<String> values, final List<ServiceMessage> messages) throws IOException {
+        try {
+            return reader.read(new ServiceMessageReader.Handler() {
+                @Override
+                public void onMessage(ServiceMessage message) {
+                    attributes.add(message.getAttributes());
+                    values.add(message.getValue());
+                    messages.add(message);
+                }
+            });
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void write(String... lines) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.Story;
+import net.thucydides.core.steps.StepListener;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ServiceLoader;
+
+/**
+ * Startup benchmark, must be run in a fresh JVM to be meaningful:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -cp target/classes:target/test-classes:$(cat cp.txt) com.github.vase4kin.StartupBenchmark
+ * </pre>
+ * Reports classes loaded and time spent from {@link ServiceLoader} lookup up to the first printed service message
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) {
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+
+        long loadedBefore = classLoading.getTotalLoadedClassCount();
+        long startTime = System.nanoTime();
+
+        StepListener listener = null;
+        for (StepListener stepListener : ServiceLoader.load(StepListener.class)) {
+            if (stepListener instanceof TeamCityStepListener) {
+                listener = stepListener;
+            }
+        }
+        if (listener == null) {
+            throw new IllegalStateException("TeamCityStepListener is not registered in META-INF/services");
+        }
+        long loadedTime = System.nanoTime();
+        long loadedAfterServiceLoader = classLoading.getTotalLoadedClassCount();
+
+        listener.testSuiteStarted(Story.withId("startupBenchmark", "Startup benchmark"));
+        long firstMessageTime = System.nanoTime();
+        long loadedAfterFirstMessage = classLoading.getTotalLoadedClassCount();
+
+        listener.testSuiteFinished();
+
+        System.out.println(String.format("Service loader: %d classes, %.3f ms",
+                loadedAfterServiceLoader - loadedBefore, (loadedTime - startTime) / 1e6));
+        System.out.println(String.format("First message: %d classes, %.3f ms",
+                loadedAfterFirstMessage - loadedAfterServiceLoader, (firstMessageTime - loadedTime) / 1e6));
+        System.out.println(String.format("Total: %d classes, %.3f ms",
+                loadedAfterFirstMessage - loadedBefore, (firstMessageTime - startTime) / 1e6));
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test printing of steps as blocks
+ */
+public class StepBlockTrackerTest {
+
+    private final List<String> blocks = new ArrayList<>();
+
+    private final StepBlockTracker.Printer printer = new StepBlockTracker.Printer() {
+        @Override
+        public void printBlockOpened(String name, String description) {
+            blocks.add("opened " + name);
+        }
+
+        @Override
+        public void printBlockClosed(String name) {
+            blocks.add("closed " + name);
+        }
+    };
+
+    @Test
+    public void testLiveBlocksAreLimitedByDepth() {
+
+        StepBlockTracker tracker = new StepBlockTracker(2, 0, printer);
+
+        tracker.stepStarted("login");
+        tracker.stepStarted("open page");
+        tracker.stepStarted("find element");
+        assertThat(blocks, is(Arrays.asList("opened login", "opened open page")));
+        tracker.stepFinished(false);
+        tracker.stepFinished(false);
+        tracker.stepFinished(false);
+
+        assertThat(blocks, is(Arrays.asList("opened login", "opened open page", "closed open page", "closed login")));
+    }
+
+    @Test
+    public void testShortStepsAreDroppedAndChildrenMovedToParent() {
+
+        StepBlockTracker tracker = new StepBlockTracker(10, 1000, printer);
+
+        tracker.stepStarted("login");
+        tracker.stepStarted("open page");
+        tracker.stepStarted("wait for element");
+        tracker.stepFinished(true);
+        tracker.stepFinished(false);
+        assertThat(blocks.isEmpty(), is(true));
+        tracker.stepFinished(true);
+
+        assertThat(blocks, is(Arrays.asList("opened login", "opened wait for element", "closed wait for element", "closed login")));
+    }
+
+    @Test
+    public void testLongStepIsPrinted() throws Exception {
+
+        StepBlockTracker tracker = new StepBlockTracker(10, 1, printer);
+
+        tracker.stepStarted("checkout");
+        Thread.sleep(5);
+        tracker.stepFinished(false);
+
+        assertThat(blocks, is(Arrays.asList("opened checkout", "closed checkout")));
+    }
+
+    @Test
+    public void testOpenStepsAreClosedOnReset() {
+
+        StepBlockTracker tracker = new StepBlockTracker(10, 0, printer);
+
+        tracker.stepStarted("login");
+        tracker.stepStarted("open page");
+        tracker.reset();
+        tracker.stepFinished(false);
+
+        assertThat(blocks, is(Arrays.asList("opened login", "opened open page", "closed open page", "closed login")));
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.TestStep;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test collecting of step durations for test metadata
+ */
+public class StepMetricsTest {
+
+    @Test
+    public void testMatchingStepsAreCollectedFromTheStepTree() {
+        TestStep group = TestStepFactory.getSuccessfulTestStep("Checkout");
+        group.addChildStep(TestStepFactory.getSuccessfulTestStep("Login as admin"));
+        group.addChildStep(TestStepFactory.getSuccessfulTestStep("Open cart"));
+
+        Map<String, Long> durations = new StepMetrics(Pattern.compile("Login|Checkout"), 10)
+                .collect(Arrays.asList(group, TestStepFactory.getSuccessfulTestStep("Logout")));
+
+        assertThat(durations.size(), is(2));
+        assertThat(durations.keySet().iterator().next(), is("Checkout"));
+        assertThat(durations.get("Login as admin"), is(100L));
+    }
+
+    @Test
+    public void testDurationsOfRepeatedStepsAreSummed() {
+        Map<String, Long> durations = new StepMetrics(Pattern.compile("Login"), 10).collect(Arrays.asList(
+                TestStepFactory.getSuccessfulTestStep("Login"),
+                TestStepFactory.getSuccessfulTestStep("Login")));
+
+        assertThat(durations.get("Login"), is(200L));
+    }
+
+    @Test
+    public void testEntriesAreLimited() {
+        Map<String, Long> durations = new StepMetrics(Pattern.compile("Step"), 2).collect(Arrays.asList(
+                TestStepFactory.getSuccessfulTestStep("Step 1"),
+                TestStepFactory.getSuccessfulTestStep("Step 2"),
+                TestStepFactory.getSuccessfulTestStep("Step 3"),
+                TestStepFactory.getSuccessfulTestStep("Step 1")));
+
+        assertThat(durations.size(), is(2));
+        assertThat(durations.get("Step 1"), is(200L));
+        assertThat(durations.containsKey("Step 3"), is(false));
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test the shared pool of builders
+ */
+public class StringBuilderPoolTest {
+
+    @Test
+    public void testBuildersAreReused() {
+        StringBuilderPool pool = new StringBuilderPool(2, 16, 1024);
+
+        StringBuilder builder = pool.acquire();
+        builder.append("##teamcity[");
+        pool.release(builder);
+
+        StringBuilder reused = pool.acquire();
+        assertThat(reused, sameInstance(builder));
+        assertThat(reused.length(), is(0));
+    }
+
+    @Test
+    public void testPoolIsBounded() {
+        StringBuilderPool pool = new StringBuilderPool(1, 16, 1024);
+
+        StringBuilder first = pool.acquire();
+        StringBuilder second = pool.acquire();
+        assertThat(second, not(sameInstance(first)));
+        pool.release(first);
+        pool.release(second);
+
+        assertThat(pool.acquire(), sameInstance(first));
+        assertThat(pool.acquire(), not(sameInstance(second)));
+    }
+
+    @Test
+    public void testGrownAndClearedBuildersAreDropped() {
+        StringBuilderPool pool = new StringBuilderPool(2, 16, 1024);
+
+        StringBuilder grown = pool.acquire();
+        grown.append(new char[2048]);
+        pool.release(grown);
+        assertThat(pool.acquire(), not(sameInstance(grown)));
+
+        StringBuilder builder = pool.acquire();
+        pool.release(builder);
+        pool.clear();
+        assertThat(pool.acquire(), not(sameInstance(builder)));
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.vase4kin;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.slf4j.Logger;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Test class to test printing of suites as whole blocks
+ */
+public class SuiteOutputBufferTest {
+
+    private static final String SUITE_STARTED = "##teamcity[testSuiteStarted  name='Story']";
+    private static final String NESTED_SUITE_STARTED = "##teamcity[testSuiteStarted  name='Given story']";
+    private static final String NESTED_SUITE_FINISHED = "##teamcity[testSuiteFinished  name='Given story']";
+    private static final String TEST_STARTED = "##teamcity[testStarted  name='scenario']";
+    private static final String TEST_FAILED = "##teamcity[testFailed  name='scenario']";
+    private static final String TEST_FINISHED = "##teamcity[testFinished  name='scenario']";
+    private static final String SUITE_FINISHED = "##teamcity[testSuiteFinished  name='Story']";
+
+    @Mock
+    private Logger logger;
+
+    @Before
+    public void before() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void testOutermostSuiteIsPrintedAsOneBlock() {
+        ServiceMessageSink sink = new ServiceMessageSink(logger, null, null, new SuiteOutputBuffer(1024));
+
+        write(sink, ListenerEvent.Type.SUITE_STARTED, "Story", null);
+        write(sink, ListenerEvent.Type.SUITE_STARTED, "Given story", null);
+        write(sink, ListenerEvent.Type.SUITE_FINISHED, "Given story", null);
+        write(sink, ListenerEvent.Type.TEST_STARTED, "scenario", ListenerEvent.Status.PASSED);
+        write(sink, ListenerEvent.Type.TEST_FINISHED, "scenario", ListenerEvent.Status.PASSED);
+        verifyZeroInteractions(logger);
+        write(sink, ListenerEvent.Type.SUITE_FINISHED, "Story", null);
+
+        assertThat(getPrinted(1).get(0), is(SUITE_STARTED + "\n" + NESTED_SUITE_STARTED + "\n" + NESTED_SUITE_FINISHED
+                + "\n" + TEST_STARTED + "\n" + TEST_FINISHED + "\n" + SUITE_FINISHED));
+    }
+
+    @Test
+    public void testFailureIsPrintedRightAway() {
+        ServiceMessageSink sink = new ServiceMessageSink(logger, null, null, new SuiteOutputBuffer(1024));
+
+        write(sink, ListenerEvent.Type.SUITE_STARTED, "Story", null);
+        write(sink, ListenerEvent.Type.TEST_STARTED, "scenario", ListenerEvent.Status.FAILED);
+        write(sink, ListenerEvent.Type.TEST_FAILED, "scenario", ListenerEvent.Status.FAILED);
+        assertThat(getPrinted(1).get(0), is(SUITE_STARTED + "\n" + TEST_STARTED + "\n" + TEST_FAILED));
+
+        write(sink, ListenerEvent.Type.TEST_FINISHED, "scenario", ListenerEvent.Status.FAILED);
+        write(sink, ListenerEvent.Type.SUITE_FINISHED, "Story", null);
+        assertThat(getPrinted(2).get(1), is(TEST_FINISHED + "\n" + SUITE_FINISHED));
+    }
+
+    @Test
+    public void testSuiteOverTheCapIsStreamed() {
+        int maxChars = SUITE_STARTED.length() + SUITE_FINISHED.length() + 1;
+        ServiceMessageSink sink = new ServiceMessageSink(logger, null, null, new SuiteOutputBuffer(maxChars));
+
+        write(sink, ListenerEvent.Type.SUITE_STARTED, "Story", null);
+        write(sink, ListenerEvent.Type.TEST_STARTED, "scenario", ListenerEvent.Status.PASSED);
+        verifyZeroInteractions(logger);
+        write(sink, ListenerEvent.Type.TEST_FINISHED, "scenario", ListenerEvent.Status.PASSED);
+        write(sink, ListenerEvent.Type.SUITE_FINISHED, "Story", null);
+
+        List<String> printed = getPrinted(3);
+        assertThat(printed.get(0), is(SUITE_STARTED + "\n" + TEST_STARTED));
+        assertThat(printed.get(1), is(TEST_FINISHED));
+        assertThat(printed.get(2), is(SUITE_FINISHED));
+
+        // the next suite is buffered again
+        write(sink, ListenerEvent.Type.SUITE_STARTED, "Story", null);
+        write(sink, ListenerEvent.Type.SUITE_FINISHED, "Story", null);
+        assertThat(getPrinted(4).get(3), is(SUITE_STARTED + "\n" + SUITE_FINISHED));
+    }
+
+    private static void write(ServiceMessageSink sink, ListenerEvent.Type type, String name, ListenerEvent.Status status) {
+        ListenerEvent event = new ListenerEvent(type, 0, Collections.singletonMap("name", name), status,
+                ListenerEvent.NO_EXAMPLE, 0);
+        sink.write(event, ServiceMessageEncoder.encode(event));
+    }
+
+    private List<String> getPrinted(int times) {
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(times)).info(stringArgumentCaptor.capture());
+        return stringArgumentCaptor.getAllValues();
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.Story;
+import net.thucydides.core.model.TestOutcome;
+import net.thucydides.core.model.TestStep;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Allocation budget tests for the listener hot path, fail if a callback allocates more than its declared budget.
+ * Budgets are average bytes per callback measured after warm up with {@code getThreadAllocatedBytes}, which
+ * includes the Serenity model getters, plus 25%, so a change which allocates noticeably more trips them
+ */
+public class TeamCityStepListenerAllocationTest {
+
+    /**
+     * Measured 3.3-3.6 KB on JDK 17
+     */
+    private static final long PASSED_TEST_FINISHED_BUDGET = 4608;
+    /**
+     * Measured 1280 bytes on JDK 17
+     */
+    private static final long SUITE_STARTED_FINISHED_BUDGET = 1600;
+    /**
+     * Measured 119 KB on JDK 17, mostly the rendered stack trace
+     */
+    private static final long FAILED_TEST_FINISHED_BUDGET = 150 * 1024;
+
+    private static final int WARM_UP_ITERATIONS = 20000;
+    private static final int MEASURED_ITERATIONS = 2000;
+    private static final int FAILED_STEPS_COUNT = 10;
+
+    private static final Story STORY = Story.withIdAndPath("storyId", "Test story", "stories/sprint-1/us-1/story.story");
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    private TeamCityStepListener teamCityStepListener;
+
+    @Before
+    public void before() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        teamCityStepListener = new TeamCityStepListener(new CountingLogger());
+    }
+
+    @Test
+    public void testPassedTestFinishedAllocationBudget() {
+        final TestOutcome testOutcome = new TestOutcome("passedScenario");
+        testOutcome.setUserStory(STORY);
+        testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Passed"));
+
+        long allocated = measure(new Runnable() {
+            @Override
+            public void run() {
+                teamCityStepListener.testFinished(testOutcome);
+            }
+        });
+
+        assertThat(allocated, lessThanOrEqualTo(PASSED_TEST_FINISHED_BUDGET));
+    }
+
+    @Test
+    public void testSuiteStartedAndFinishedAllocationBudget() {
+        long allocated = measure(new Runnable() {
+            @Override
+            public void run() {
+                teamCityStepListener.testSuiteStarted(STORY);
+                teamCityStepListener.testSuiteFinished();
+            }
+        });
+
+        assertThat(allocated, lessThanOrEqualTo(SUITE_STARTED_FINISHED_BUDGET));
+    }
+
+    @Test
+    public void testFailedTestFinishedWithStepTreeAllocationBudget() {
+        final TestOutcome testOutcome = new TestOutcome("failedScenario");
+        testOutcome.setUserStory(STORY);
+        TestStep group = TestStepFactory.getFailureTestStep("Failed group step");
+        for (int i = 0; i < FAILED_STEPS_COUNT - 1; i++) {
+            group.addChildStep(TestStepFactory.getSuccessfulTestStep("Passed child step " + i));
+        }
+        group.addChildStep(TestStepFactory.getFailureTestStepWithAssertionError("Failed child step"));
+        testOutcome.recordStep(group);
+
+        long allocated = measure(new Runnable() {
+            @Override
+            public void run() {
+                teamCityStepListener.testFinished(testOutcome);
+            }
+        });
+
+        assertThat(allocated, lessThanOrEqualTo(FAILED_TEST_FINISHED_BUDGET));
+    }
+
+    /**
+     * @return average bytes allocated by the current thread per callback invocation
+     */
+    private long measure(Runnable callback) {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            callback.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long first = allocatedBytes(threadId);
+        long overhead = allocatedBytes(threadId) - first;
+        long before = allocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            callback.run();
+        }
+        long after = allocatedBytes(threadId);
+        return Math.max(0, after - before - overhead) / MEASURED_ITERATIONS;
+    }
+
+    private long allocatedBytes(long threadId) {
+        return threadMXBean.getThreadAllocatedBytes(threadId);
+    }
+}
@@ -0,0 +1,342 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.DataTable;
+import net.thucydides.core.model.Story;
+import net.thucydides.core.model.TestOutcome;
+import net.thucydides.core.model.TestStep;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Stress test which replays randomized suite, test and example callbacks from many threads at once, one listener
+ * and flow per thread, and checks the printed log: no torn lines, suites are nested and every started test is
+ * finished in its flow
+ */
+public class TeamCityStepListenerConcurrencyTest {
+
+    private static final String PARALLEL_EXAMPLES_THRESHOLD_PROPERTY = "teamcity.steplistener.examples.parallel.threshold";
+    private static final String COALESCING_LATENCY_PROPERTY = "teamcity.steplistener.coalescing.latency.micros";
+
+    private static final long SEED = 42;
+    private static final int PLATFORM_THREADS = 16;
+    private static final int VIRTUAL_THREADS = 256;
+    private static final int SUITES_PER_FLOW = 4;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+    private PrintStream out;
+
+    @Before
+    public void before() throws Exception {
+        // large enough data driven scenarios are rendered on the shared pool
+        System.setProperty(PARALLEL_EXAMPLES_THRESHOLD_PROPERTY, "4");
+        file = temporaryFolder.newFile("build.log");
+        out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)), false, "UTF-8");
+    }
+
+    @After
+    public void after() {
+        System.clearProperty(PARALLEL_EXAMPLES_THRESHOLD_PROPERTY);
+        System.clearProperty(COALESCING_LATENCY_PROPERTY);
+        System.clearProperty(SuiteOutputBuffer.ENABLED_PROPERTY);
+        out.close();
+    }
+
+    @Test
+    public void testPlatformThreads() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(PLATFORM_THREADS);
+        try {
+            replayAndVerify(executor, PLATFORM_THREADS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPlatformThreadsWithCoalescing() throws Exception {
+        // zero latency threshold keeps the coalescer under pressure, passing tests are printed in batches
+        System.setProperty(COALESCING_LATENCY_PROPERTY, "0");
+        ExecutorService executor = Executors.newFixedThreadPool(PLATFORM_THREADS);
+        try {
+            replayAndVerify(executor, PLATFORM_THREADS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPlatformThreadsWithSuiteBuffer() throws Exception {
+        System.setProperty(SuiteOutputBuffer.ENABLED_PROPERTY, "true");
+        ExecutorService executor = Executors.newFixedThreadPool(PLATFORM_THREADS);
+        try {
+            replayAndVerify(executor, PLATFORM_THREADS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        Assume.assumeTrue("Virtual threads require Java 21", executor != null);
+        try {
+            replayAndVerify(executor, VIRTUAL_THREADS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return null if the runtime has no virtual threads, the build targets Java 7 so they are looked up reflectively
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private void replayAndVerify(ExecutorService executor, int flows) throws Exception {
+        final PrintStreamLogger logger = new PrintStreamLogger(out);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> expectedTests = new ArrayList<>(flows);
+        for (int flow = 0; flow < flows; flow++) {
+            final String flowId = "flow-" + flow;
+            final Random random = new Random(SEED + flow);
+            expectedTests.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    TeamCityStepListener listener = new TeamCityStepListener(logger, flowId);
+                    start.await();
+                    return replay(listener, flowId, random);
+                }
+            }));
+        }
+        start.countDown();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int flow = 0; flow < flows; flow++) {
+            expected.put("flow-" + flow, expectedTests.get(flow).get(60, TimeUnit.SECONDS));
+        }
+        out.flush();
+
+        assertThat(verify(), is(expected));
+    }
+
+    /**
+     * Replays suites with given stories and plain, failing, pending and data driven scenarios, yields between
+     * callbacks to shuffle flows
+     *
+     * @return number of tests the flow should report
+     */
+    private int replay(TeamCityStepListener listener, String flowId, Random random) {
+        int tests = 0;
+        boolean classSuite = random.nextBoolean();
+        if (classSuite) {
+            listener.testSuiteStarted(TeamCityStepListenerConcurrencyTest.class);
+        }
+        for (int s = 0; s < SUITES_PER_FLOW; s++) {
+            String path = "stories/" + flowId + "/story" + s;
+            listener.testSuiteStarted(Story.withIdAndPath(path, "Story " + s + " of " + flowId, path + ".story"));
+            if (random.nextInt(4) == 0) {
+                String givenPath = path + "/given";
+                listener.testSuiteStarted(Story.withIdAndPath(givenPath, "Given story " + s + " of " + flowId, givenPath + ".story"));
+                tests += replayTest(listener, givenPath, "givenScenario", random);
+                listener.testSuiteFinished();
+            }
+            int scenarios = 1 + random.nextInt(6);
+            for (int t = 0; t < scenarios; t++) {
+                tests += replayTest(listener, path, "scenario" + t, random);
+            }
+            listener.testSuiteFinished();
+        }
+        if (classSuite) {
+            listener.testSuiteFinished();
+        }
+        return tests;
+    }
+
+    private int replayTest(TeamCityStepListener listener, String path, String name, Random random) {
+        TestOutcome outcome = new TestOutcome(name);
+        outcome.setUserStory(Story.withIdAndPath(path, path, path + ".story"));
+        listener.testStarted(name);
+        maybeYield(random);
+        int roll = random.nextInt(10);
+        if (roll < 3) {
+            int rows = 1 + random.nextInt(8);
+            outcome.useExamplesFrom(DataTable.withHeaders(Arrays.asList("row")).build());
+            for (int row = 0; row < rows; row++) {
+                listener.exampleStarted(Collections.singletonMap("row", String.valueOf(row)));
+                TestStep example = new TestStep("[" + (row + 1) + "] {row=" + row + "}");
+                example.addChildStep(createStep(random));
+                outcome.recordStep(example);
+                maybeYield(random);
+                listener.exampleFinished();
+            }
+            listener.testFinished(outcome);
+            return rows;
+        }
+        outcome.recordStep(createStep(random));
+        listener.testFinished(outcome);
+        maybeYield(random);
+        return 1;
+    }
+
+    private static TestStep createStep(Random random) {
+        int roll = random.nextInt(10);
+        if (roll < 7) {
+            return TestStepFactory.getSuccessfulTestStep("Step");
+        }
+        if (roll < 9) {
+            return TestStepFactory.getFailureTestStepWithAssertionError("Step");
+        }
+        return TestStepFactory.getPendingTestStep("Step");
+    }
+
+    private static void maybeYield(Random random) {
+        if (random.nextBoolean()) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Checks every line of the log and replays the messages of every flow
+     *
+     * @return flow ids mapped to the number of finished tests
+     */
+    private Map<String, Integer> verify() throws IOException {
+        long lines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                if (!line.startsWith("##teamcity[") || !line.endsWith("]")) {
+                    fail("Torn line " + lines + ": " + line);
+                }
+            }
+        }
+
+        final Map<String, FlowState> flows = new HashMap<>();
+        long messages;
+        try (ServiceMessageReader reader = new ServiceMessageReader(file)) {
+            messages = reader.read(new ServiceMessageReader.Handler() {
+                @Override
+                public void onMessage(ServiceMessage message) {
+                    String flowId = message.getAttribute("flowId");
+                    assertTrue("Message without a flow: " + message, flowId != null);
+                    FlowState flow = flows.get(flowId);
+                    if (flow == null) {
+                        flow = new FlowState(flowId);
+                        flows.put(flowId, flow);
+                    }
+                    flow.accept(message.getType(), message.getAttribute("name"));
+                }
+            });
+        }
+        assertThat("Every line is one service message", messages, is(lines));
+
+        Map<String, Integer> finishedTests = new HashMap<>();
+        for (FlowState flow : flows.values()) {
+            flow.assertComplete();
+            finishedTests.put(flow.flowId, flow.finishedTests);
+        }
+        return finishedTests;
+    }
+
+    /**
+     * Messages of one flow must look like a sequential run
+     */
+    private static class FlowState {
+
+        private final String flowId;
+        private final Deque<String> suites = new ArrayDeque<>();
+        private String startedTest;
+        private int finishedTests;
+
+        private FlowState(String flowId) {
+            this.flowId = flowId;
+        }
+
+        private void accept(ListenerEvent.Type type, String name) {
+            if (type == null) {
+                return;
+            }
+            switch (type) {
+                case SUITE_STARTED:
+                    assertNoStartedTest(type);
+                    suites.push(name);
+                    break;
+                case SUITE_FINISHED:
+                    assertNoStartedTest(type);
+                    assertThat(flowId + " finishes the innermost suite", name, is(suites.peek()));
+                    suites.pop();
+                    break;
+                case TEST_STARTED:
+                    assertNoStartedTest(type);
+                    assertTrue(flowId + " starts " + name + " outside of a suite", !suites.isEmpty());
+                    startedTest = name;
+                    break;
+                case TEST_FAILED:
+                case TEST_IGNORED:
+                    assertThat(flowId + " reports the started test", name, is(startedTest));
+                    break;
+                case TEST_FINISHED:
+                    assertThat(flowId + " finishes the started test", name, is(startedTest));
+                    startedTest = null;
+                    finishedTests++;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void assertNoStartedTest(ListenerEvent.Type type) {
+            if (startedTest != null) {
+                fail(flowId + " prints " + type.getMessageName() + " before " + startedTest + " is finished");
+            }
+        }
+
+        private void assertComplete() {
+            assertTrue(flowId + " has unfinished suites " + suites, suites.isEmpty());
+            assertTrue(flowId + " has unfinished test " + startedTest, startedTest == null);
+        }
+    }
+
+    /**
+     * Prints every info message as a line of a shared stream like a console appender does
+     */
+    private static class PrintStreamLogger extends CountingLogger {
+
+        private final PrintStream out;
+
+        private PrintStreamLogger(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void info(String msg) {
+            super.info(msg);
+            out.println(msg);
+        }
+    }
+}
@@ -10,9 +10,17 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.is;
@@ -53,6 +61,11 @@ public class TeamCityStepListenerTest {
     @After
     public void after() {
         System.clearProperty("teamcity.flowId");
+        System.clearProperty("teamcity.steplistener.examples.parallel.threshold");
+        System.clearProperty("teamcity.steplistener.coalescing.latency.micros");
+        System.clearProperty("teamcity.steplistener.coalescing.batch.size");
+        System.clearProperty("teamcity.steplistener.resource.usage");
+        System.clearProperty("teamcity.steplistener.timestamps");
     }
 
     @Test
@@ -95,6 +108,91 @@ public class TeamCityStepListenerTest {
         assertThat(stringArgumentCaptor.getAllValues().get(2), is(testFinishedExpectedMessage));
     }
 
+    @Test
+    public void testRepeatedStepsAreCollapsed() {
+
+        TestOutcome testOutcome = new TestOutcome("failedScenario");
+        testOutcome.setUserStory(STORY);
+        for (int i = 0; i < 3; i++) {
+            testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Wait for element"));
+        }
+        testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Check status"));
+        testOutcome.recordStep(TestStepFactory.getFailureTestStepWithAssertionError("Failed scenario step"));
+        testOutcome.recordStep(TestStepFactory.getFailureTestStepWithAssertionError("Failed scenario step"));
+        testOutcome.setTestFailureCause(failureCause);
+
+        teamCityStepListener.testFinished(testOutcome);
+
+        String testFailedExpectedMessage = "##teamcity[testFailed  message='the test is failed!' details='Steps:|r|nWait for element x3 (0.3) -> SUCCESS|r|nCheck status (0.1) -> SUCCESS|r|nFailed scenario step x2 (0.2) -> FAILURE|r|nStackTrace|r|n' name='sprint-1.us-1.story.failedScenario']";
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(3)).info(stringArgumentCaptor.capture());
+
+        assertThat(stringArgumentCaptor.getAllValues().get(1), is(testFailedExpectedMessage));
+    }
+
+    @Test
+    public void testFailureIsSummarizedUnderHeapPressure() {
+        HeapPressureMonitor heapPressureMonitor = new HeapPressureMonitor(
+                Collections.singletonList(mock(java.lang.management.MemoryPoolMXBean.class)), 85);
+        heapPressureMonitor.pressureDetected("Old Gen", System.nanoTime());
+        teamCityStepListener = spy(new TeamCityStepListener(logger, null, null, heapPressureMonitor));
+
+        TestOutcome testOutcome = new TestOutcome("failedScenario");
+        testOutcome.setUserStory(STORY);
+        testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Open page"));
+        testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Fill form"));
+        testOutcome.recordStep(TestStepFactory.getFailureTestStepWithAssertionError("Submit form"));
+        testOutcome.recordStep(TestStepFactory.getSkippedTestStep("Check result"));
+        testOutcome.setTestFailureCause(failureCause);
+
+        teamCityStepListener.testFinished(testOutcome);
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, atLeast(3)).info(stringArgumentCaptor.capture());
+        String testFailed = null;
+        for (String message : stringArgumentCaptor.getAllValues()) {
+            if (message.startsWith("##teamcity[testFailed")) {
+                testFailed = message;
+            }
+        }
+        assertThat(testFailed, containsString("details='Steps are not rendered under heap pressure, 4 steps: "
+                + "2 passed, 1 failed, 1 skipped or pending|r|nFailed step: Submit form|r|n"
+                + "java.lang.AssertionError: assertion error|r|n'"));
+        verify(teamCityStepListener, never()).getStackTrace(any(Throwable.class));
+    }
+
+    @Test
+    public void testResourceUsageIsReportedAsTestMetadata() {
+        System.setProperty("teamcity.steplistener.resource.usage", "true");
+        teamCityStepListener = new TeamCityStepListener(logger);
+
+        TestOutcome testOutcome = new TestOutcome("passedScenario");
+        testOutcome.setUserStory(STORY);
+        testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Passed"));
+
+        teamCityStepListener.testSuiteStarted(STORY);
+        teamCityStepListener.testStarted("passedScenario");
+        teamCityStepListener.testFinished(testOutcome);
+        teamCityStepListener.testSuiteFinished();
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, atLeast(6)).info(stringArgumentCaptor.capture());
+        List<String> messages = stringArgumentCaptor.getAllValues();
+        int size = messages.size();
+
+        assertThat(messages.get(1), is("##teamcity[testStarted  name='sprint-1.us-1.story.passedScenario']"));
+        for (String metadata : messages.subList(2, size - 3)) {
+            assertThat(metadata, containsString("##teamcity[testMetadata "));
+            assertThat(metadata, containsString("testName='sprint-1.us-1.story.passedScenario'"));
+            assertThat(metadata, containsString("type='number'"));
+        }
+        assertThat(messages.get(size - 4), containsString("name='GC count'"));
+        assertThat(messages.get(size - 3), is("##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.passedScenario']"));
+        assertThat(messages.get(size - 2), containsString("##teamcity[message  text='Resource usage of Test story: CPU time"));
+        assertThat(messages.get(size - 1), is("##teamcity[testSuiteFinished  name='Test story']"));
+    }
+
     @Test
     public void testScenarioChildStepResultIsSuccess() {
 
@@ -846,6 +944,161 @@ public class TeamCityStepListenerTest {
         assertThat(stringArgumentCaptor.getAllValues().get(2), is(testFinishedExpectedMessage));
     }
 
+    @Test
+    public void testParallelExampleRenderingIsTheSameAsSequential() {
+
+        List<String> sequentialMessages = printExampleResults(Integer.MAX_VALUE);
+        List<String> parallelMessages = printExampleResults(1);
+
+        assertThat(parallelMessages.size(), is(244));
+        assertThat(parallelMessages, is(sequentialMessages));
+    }
+
+    @Test
+    public void testParallelExampleRenderingOfTableLargerThanWindowIsTheSameAsSequential() {
+
+        // 63 batches of 32 rows, more than the window of batches in flight
+        List<String> sequentialMessages = printExampleResults(Integer.MAX_VALUE, null, 2000);
+        List<String> parallelMessages = printExampleResults(1, null, 2000);
+
+        assertThat(parallelMessages, is(sequentialMessages));
+    }
+
+    @Test
+    public void testParallelExampleRenderingShortensTheSameRowsAsSequential() {
+
+        List<String> sequentialMessages = printExampleResults(Integer.MAX_VALUE, new FailureClusters(5));
+        List<String> parallelMessages = printExampleResults(1, new FailureClusters(5));
+
+        assertThat(parallelMessages, is(sequentialMessages));
+        int shortenedRows = 0;
+        for (String message : parallelMessages) {
+            if (message.contains("Steps are not rendered, ")) {
+                shortenedRows++;
+            }
+        }
+        // 34 failing rows, the first 5 have full details
+        assertThat(shortenedRows, is(29));
+    }
+
+    @Test
+    public void testPassedTestsAreCoalescedWhenLoggerIsSlow() {
+
+        System.setProperty("teamcity.steplistener.coalescing.latency.micros", "1000");
+        System.setProperty("teamcity.steplistener.coalescing.batch.size", "2");
+        Logger slowLogger = mock(Logger.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(5);
+                return null;
+            }
+        }).when(slowLogger).info(anyString());
+        TeamCityStepListener listener = spy(new TeamCityStepListener(slowLogger));
+        doReturn("StackTrace").when(listener).getStackTrace(any(Throwable.class));
+
+        listener.testSuiteStarted(STORY);
+        for (int i = 1; i <= 3; i++) {
+            TestOutcome testOutcome = new TestOutcome("passedScenario" + i);
+            testOutcome.setUserStory(STORY);
+            testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Passed"));
+            listener.testFinished(testOutcome);
+        }
+        TestOutcome failedOutcome = new TestOutcome("failedScenario");
+        failedOutcome.setUserStory(STORY);
+        failedOutcome.recordStep(TestStepFactory.getFailureTestStepWithAssertionError("Failed scenario step"));
+        failedOutcome.setTestFailureCause(failureCause);
+        listener.testFinished(failedOutcome);
+        listener.testSuiteFinished();
+
+        String firstBatchExpectedMessage = "##teamcity[testStarted  name='sprint-1.us-1.story.passedScenario1']\n"
+                + "##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.passedScenario1']\n"
+                + "##teamcity[testStarted  name='sprint-1.us-1.story.passedScenario2']\n"
+                + "##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.passedScenario2']";
+        String secondBatchExpectedMessage = "##teamcity[testStarted  name='sprint-1.us-1.story.passedScenario3']\n"
+                + "##teamcity[testFinished  duration='100' name='sprint-1.us-1.story.passedScenario3']";
+        String testStartedExpectedMessage = "##teamcity[testStarted  name='sprint-1.us-1.story.failedScenario']";
+        String coalescedExpectedMessage = "##teamcity[message  text='6 passing test messages were coalesced']";
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(slowLogger, times(8)).info(stringArgumentCaptor.capture());
+        assertThat(stringArgumentCaptor.getAllValues().get(1), is(firstBatchExpectedMessage));
+        assertThat(stringArgumentCaptor.getAllValues().get(2), is(secondBatchExpectedMessage));
+        assertThat(stringArgumentCaptor.getAllValues().get(3), is(testStartedExpectedMessage));
+        assertThat(stringArgumentCaptor.getAllValues().get(7), is(coalescedExpectedMessage));
+    }
+
+    @Test
+    public void testStartedTimestampIsTakenFromTheOutcome() throws Exception {
+        System.setProperty("teamcity.steplistener.timestamps", "true");
+        TeamCityStepListener listener = new TeamCityStepListener(logger);
+
+        TestOutcome testOutcome = new TestOutcome("passedScenario");
+        testOutcome.setUserStory(STORY);
+        testOutcome.recordStep(TestStepFactory.getSuccessfulTestStep("Passed"));
+
+        listener.testFinished(testOutcome);
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(logger, times(2)).info(stringArgumentCaptor.capture());
+        long startedTimestamp = getTimestamp(stringArgumentCaptor.getAllValues().get(0));
+        long finishedTimestamp = getTimestamp(stringArgumentCaptor.getAllValues().get(1));
+        assertThat(startedTimestamp < finishedTimestamp, is(true));
+    }
+
+    private static long getTimestamp(String message) throws ParseException {
+        Matcher matcher = Pattern.compile("timestamp='([^']+)'").matcher(message);
+        assertThat(matcher.find(), is(true));
+        return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").parse(matcher.group(1)).getTime();
+    }
+
+    private List<String> printExampleResults(int parallelThreshold) {
+        return printExampleResults(parallelThreshold, null);
+    }
+
+    /**
+     * @param failureClusters null if failures are not clustered
+     */
+    private List<String> printExampleResults(int parallelThreshold, FailureClusters failureClusters) {
+        return printExampleResults(parallelThreshold, failureClusters, 100);
+    }
+
+    /**
+     * @param rows number of rows, every third row fails
+     */
+    private List<String> printExampleResults(int parallelThreshold, FailureClusters failureClusters, int rows) {
+        System.setProperty("teamcity.steplistener.examples.parallel.threshold", String.valueOf(parallelThreshold));
+        Logger examplesLogger = mock(Logger.class);
+        // stack traces would differ by the line the helper is called from
+        TeamCityStepListener listener = spy(new TeamCityStepListener(examplesLogger, null, failureClusters, null));
+        doReturn("StackTrace").when(listener).getStackTrace(any(Throwable.class));
+
+        TestOutcome testOutcome = new TestOutcome("parametrisedScenario");
+        testOutcome.useExamplesFrom(dataTable);
+        testOutcome.setUserStory(STORY);
+        for (int i = 0; i < rows; i++) {
+            listener.exampleStarted(Collections.singletonMap("value", "exampleTableValue" + i));
+            TestStep testStep;
+            if (i % 3 == 0) {
+                testStep = TestStepFactory.getFailureTestStep("[" + (i + 1) + "] {value=exampleTableValue" + i);
+                testStep.addChildStep(TestStepFactory.getFailureTestStepWithAssertionError("Failed scenario child step"));
+            } else if (i % 7 == 0) {
+                testStep = TestStepFactory.getPendingTestStep("[" + (i + 1) + "] {value=exampleTableValue" + i);
+                testStep.addChildStep(TestStepFactory.getPendingTestStep("Pending scenario child step"));
+            } else {
+                testStep = TestStepFactory.getSuccessfulTestStep("[" + (i + 1) + "] {value=exampleTableValue" + i);
+                testStep.addChildStep(TestStepFactory.getSuccessfulTestStep("Passed scenario child step"));
+            }
+            testOutcome.recordStep(testStep);
+        }
+
+        listener.testFinished(testOutcome);
+
+        ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
+        verify(examplesLogger, atLeastOnce()).info(stringArgumentCaptor.capture());
+        return stringArgumentCaptor.getAllValues();
+    }
+
     private void verifyArgumentCaptorCapturesNoLoggerMessages() {
         ArgumentCaptor<String> stringArgumentCaptor = ArgumentCaptor.forClass(String.class);
         verify(logger, never()).info(stringArgumentCaptor.capture());
@@ -0,0 +1,87 @@
+package com.github.vase4kin;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test the manifest of finished tests and lists for reruns
+ */
+public class TestManifestTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void before() throws Exception {
+        file = temporaryFolder.newFile("manifest.tsv");
+        TestManifest manifest = new TestManifest(file, 0);
+        manifest.record(TestManifest.PASSED, "com.example.LoginTest.login", "com.example.LoginTest#login", 0);
+        manifest.record(TestManifest.FAILED, "com.example.LoginTest.logout", "com.example.LoginTest#logout", 1);
+        manifest.record(TestManifest.FAILED, "checkout.Pay\twith card", "stories/checkout.story", 2);
+        manifest.record(TestManifest.IGNORED, "checkout.Pay later", "stories/checkout.story", 3);
+        manifest.record(TestManifest.FAILED, "search.Find", "stories/search.story", 4);
+        // rerun of a failed test which passed
+        manifest.record(TestManifest.PASSED, "search.Find", "stories/search.story", 5);
+        manifest.force();
+        // crash in the middle of a line
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write("F\tcom.example.Lo".getBytes(EventJournal.UTF_8));
+        }
+    }
+
+    @Test
+    public void testLastResultOfCompleteLinesIsRead() throws Exception {
+        Map<String, TestManifestFilter.Entry> entries = TestManifestFilter.read(file);
+
+        assertThat(entries.keySet().size(), is(5));
+        assertThat(entries.get("checkout.Pay with card").getStatus(), is(TestManifest.FAILED));
+        assertThat(entries.get("search.Find").getStatus(), is(TestManifest.PASSED));
+    }
+
+    @Test
+    public void testResumedRunDoesNotAppendToPartialLine() throws Exception {
+        TestManifest manifest = new TestManifest(file, 0);
+        manifest.record(TestManifest.FAILED, "com.example.CartTest.add", "com.example.CartTest#add", 6);
+        manifest.force();
+
+        Map<String, TestManifestFilter.Entry> entries = TestManifestFilter.read(file);
+
+        assertThat(entries.keySet().size(), is(6));
+        assertThat(entries.get("com.example.CartTest.add").getStatus(), is(TestManifest.FAILED));
+    }
+
+    @Test
+    public void testFailedTests() throws Exception {
+        Map<String, TestManifestFilter.Entry> entries = TestManifestFilter.read(file);
+
+        assertThat(TestManifestFilter.select(entries.values(), true, "names"),
+                is(Arrays.asList("com.example.LoginTest.logout", "checkout.Pay with card")));
+        assertThat(TestManifestFilter.select(entries.values(), true, "tests"),
+                is(Collections.singletonList("com.example.LoginTest#logout")));
+        assertThat(TestManifestFilter.select(entries.values(), true, "stories"),
+                is(Collections.singletonList("stories/checkout.story")));
+    }
+
+    @Test
+    public void testCompletedTestsAreExcluded() throws Exception {
+        Map<String, TestManifestFilter.Entry> entries = TestManifestFilter.read(file);
+
+        assertThat(TestManifestFilter.select(entries.values(), false, "tests"),
+                is(Collections.singletonList("!com.example.LoginTest#login,!com.example.LoginTest#logout")));
+        assertThat(TestManifestFilter.select(entries.values(), false, "names").size(), is(5));
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.vase4kin;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Test class to test formatting of TeamCity timestamps
+ */
+public class TimestampFormatterTest {
+
+    private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+
+    @Test
+    public void testTimestampIsFormatted() {
+        TimestampFormatter formatter = new TimestampFormatter(TimeZone.getTimeZone("UTC"));
+
+        assertThat(formatter.format(1476870896789L), is("2016-10-19T09:54:56.789+0000"));
+        assertThat(formatter.format(1476870896009L), is("2016-10-19T09:54:56.009+0000"));
+        assertThat(formatter.format(1476870900000L), is("2016-10-19T09:55:00.000+0000"));
+        // back to the previous minute
+        assertThat(formatter.format(1476870899999L), is("2016-10-19T09:54:59.999+0000"));
+    }
+
+    @Test
+    public void testOffsetsAndDaylightSavingTime() {
+        TimestampFormatter kolkata = new TimestampFormatter(TimeZone.getTimeZone("Asia/Kolkata"));
+        assertThat(kolkata.format(1476870896789L), is("2016-10-19T15:24:56.789+0530"));
+
+        TimestampFormatter newfoundland = new TimestampFormatter(TimeZone.getTimeZone("America/St_Johns"));
+        assertThat(newfoundland.format(1476870896789L), is("2016-10-19T07:24:56.789-0230"));
+
+        // clocks go back from 03:00 to 02:00 on 2016-10-30
+        TimestampFormatter berlin = new TimestampFormatter(TimeZone.getTimeZone("Europe/Berlin"));
+        assertThat(berlin.format(1477789199999L), is("2016-10-30T02:59:59.999+0200"));
+        assertThat(berlin.format(1477789200000L), is("2016-10-30T02:00:00.000+0100"));
+    }
+
+    @Test
+    public void testSameAsSimpleDateFormat() {
+        Random random = new Random(42);
+        for (String zone : new String[]{"UTC", "Europe/Berlin", "America/New_York", "Australia/Lord_Howe"}) {
+            TimeZone timeZone = TimeZone.getTimeZone(zone);
+            TimestampFormatter formatter = new TimestampFormatter(timeZone);
+            SimpleDateFormat dateFormat = new SimpleDateFormat(PATTERN);
+            dateFormat.setTimeZone(timeZone);
+            long time = 1451606400000L;
+            for (int i = 0; i < 10000; i++) {
+                time += random.nextInt(i % 100 == 0 ? 100000000 : 5000);
+                assertThat(formatter.format(time), is(dateFormat.format(new Date(time))));
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.vase4kin;
+
+import net.thucydides.core.model.Story;
+import net.thucydides.core.model.TestOutcome;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Benchmark of many concurrent tests, one listener per virtual thread the way Serenity creates one per thread:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * java -Dtests=10000 -cp target/classes:target/test-classes:$(cat cp.txt) com.github.vase4kin.VirtualThreadBenchmark
+ * </pre>
+ * All tests of a run are started at once, every one in its own suite with a passing or failing scenario. Every run
+ * prints throughput, peak heap and heap after GC, stable numbers across runs mean pooled buffers don't grow with
+ * the number of threads. Platform threads are used on runtimes without virtual threads.
+ */
+public class VirtualThreadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tests = Integer.getInteger("tests", 10000);
+        int runs = Integer.getInteger("runs", 5);
+
+        final CountingLogger logger = new CountingLogger();
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        String threads = "virtual";
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors());
+            threads = "platform";
+        }
+        try {
+            for (int run = 0; run < runs; run++) {
+                logger.reset();
+                resetPeakUsage();
+                final CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>(tests);
+                for (int i = 0; i < tests; i++) {
+                    final int number = i;
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            start.await();
+                            replay(new TeamCityStepListener(logger, "flow-" + number), number);
+                            return null;
+                        }
+                    }));
+                }
+                long startTime = System.nanoTime();
+                start.countDown();
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                double seconds = (System.nanoTime() - startTime) / 1e9;
+                long peakHeap = getPeakHeapUsage();
+                System.gc();
+                System.out.println(String.format(
+                        "Run %d: %d tests on %s threads, %.3f s, %.0f tests/s, %d messages, peak heap %.1f MB, heap after GC %.1f MB",
+                        run + 1, tests, threads, seconds, tests / seconds, logger.getMessages(),
+                        peakHeap / (1024.0 * 1024), getHeapUsage() / (1024.0 * 1024)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Every tenth test fails, so failure details are rendered and encoded as well
+     */
+    private static void replay(TeamCityStepListener listener, int number) {
+        Story story = Story.withIdAndPath("story" + number, "Story " + number, "stories/benchmark/story" + number + ".story");
+        TestOutcome outcome = new TestOutcome("scenario");
+        outcome.setUserStory(story);
+        outcome.recordStep(number % 10 == 0
+                ? TestStepFactory.getFailureTestStepWithAssertionError("Step")
+                : TestStepFactory.getSuccessfulTestStep("Step"));
+        listener.testSuiteStarted(story);
+        listener.testStarted("scenario");
+        listener.testFinished(outcome);
+        listener.testSuiteFinished();
+    }
+
+    /**
+     * @return null if the runtime has no virtual threads, the build targets Java 7 so they are looked up reflectively
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static void resetPeakUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    private static long getPeakHeapUsage() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static long getHeapUsage() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}